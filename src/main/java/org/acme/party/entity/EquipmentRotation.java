@@ -0,0 +1,129 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.smallrye.mutiny.Uni;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import lombok.Getter;
+import lombok.Setter;
+import org.acme.party.model.Equipment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.acme.party.model.Armory.ARMOURS;
+import static org.acme.party.model.Armory.WEAPONS;
+
+/**
+ * The armours and weapons already handed out to a user in the current rotation, as bitsets over the
+ * {@code Armory.ARMOURS} and {@code Armory.WEAPONS} indices. A user never gets the same item twice until every
+ * item has been used, after which a new rotation starts. The state lives in the database so that every replica
+ * sees the same rotation, and it survives restarts.
+ */
+@Entity
+@Getter
+@Setter
+public class EquipmentRotation extends PanacheEntityBase {
+
+    /**
+     * The common table expressions claiming the next free armour and weapon of the user's row, searching the free
+     * bits from a random start index and wrapping around, or starting a new rotation when every item is used. The
+     * row is locked by the statement, so concurrent claims on any replica are serialized. The row of a user seen for
+     * the first time is created with the items at the start indices, and if another transaction created it
+     * meanwhile, nothing is claimed. They end with {@code equipment (armour, weapon)}, the names of the claimed
+     * items, so that a statement can claim them and use them at once, see {@link PartyMember#create}.
+     * Parameters: 1 user ID, 2-4 armour start index, count and mask, 5-7 weapon start index, count and mask.
+     */
+    static final String CLAIM = """
+            existing AS (
+                SELECT armours, weapons FROM EquipmentRotation WHERE userId = ?1 FOR UPDATE),
+            pick AS (
+                SELECT f.freeArmours, f.freeWeapons,
+                    CASE WHEN f.freeArmours = 0 THEN ?2
+                         ELSE (?2 + round(log(2, (f.ra & (-f.ra))::numeric))::int) % ?3 END AS armour,
+                    CASE WHEN f.freeWeapons = 0 THEN ?5
+                         ELSE (?5 + round(log(2, (f.rw & (-f.rw))::numeric))::int) % ?6 END AS weapon
+                FROM (
+                    SELECT (~armours) & ?4 AS freeArmours,
+                        (~weapons) & ?7 AS freeWeapons,
+                        ((((~armours) & ?4) >> ?2) | (((~armours) & ?4) << (?3 - ?2))) & ?4 AS ra,
+                        ((((~weapons) & ?7) >> ?5) | (((~weapons) & ?7) << (?6 - ?5))) & ?7 AS rw
+                    FROM existing
+                ) f),
+            claimed AS (
+                UPDATE EquipmentRotation r
+                SET armours = (CASE WHEN p.freeArmours = 0 THEN 0 ELSE r.armours END) | (1::bigint << p.armour),
+                    weapons = (CASE WHEN p.freeWeapons = 0 THEN 0 ELSE r.weapons END) | (1::bigint << p.weapon)
+                FROM pick p
+                WHERE r.userId = ?1
+                RETURNING p.armour, p.weapon),
+            created AS (
+                INSERT INTO EquipmentRotation (userId, armours, weapons)
+                SELECT ?1, 1::bigint << ?2, 1::bigint << ?5 WHERE NOT EXISTS (SELECT 1 FROM existing)
+                ON CONFLICT (userId) DO NOTHING
+                RETURNING CAST(?2 AS int) AS armour, CAST(?5 AS int) AS weapon),
+            equipment AS (
+                SELECT (%s)[c.armour + 1] AS armour, (%s)[c.weapon + 1] AS weapon
+                FROM (SELECT armour, weapon FROM claimed UNION ALL SELECT armour, weapon FROM created) c)"""
+            .formatted(array(ARMOURS), array(WEAPONS));
+
+    @Id
+    public String userId;
+    public long armours;
+    public long weapons;
+
+    /**
+     * Claims an armour and a weapon not yet used by the user in the current rotation, within the current
+     * transaction, with a single statement.
+     *
+     * @param userId the user receiving the equipment
+     * @return a {@link Uni} containing the claimed armour and weapon
+     */
+    public static Uni<Equipment> claim(String userId) {
+        List<Object> parameters = parameters(userId);
+        return Panache.getSession().chain(session -> {
+                    var query = session.createNativeQuery("WITH " + CLAIM + " SELECT armour, weapon FROM equipment");
+                    for (int i = 0; i < parameters.size(); i++) {
+                        query.setParameter(i + 1, parameters.get(i));
+                    }
+                    return query.getResultList();
+                })
+                .chain(rows -> rows.isEmpty()
+                        // a concurrent transaction created the rotation of the user, it is there by now
+                        ? claim(userId)
+                        : Uni.createFrom().item(equipment((Object[]) ((List<?>) rows).get(0))));
+    }
+
+    /**
+     * @param userId the user receiving the equipment
+     * @return the parameters of {@link #CLAIM}, with random start indices
+     */
+    static List<Object> parameters(String userId) {
+        int armourStart = ThreadLocalRandom.current().nextInt(ARMOURS.length);
+        int weaponStart = ThreadLocalRandom.current().nextInt(WEAPONS.length);
+        return new ArrayList<>(List.of(userId, armourStart, ARMOURS.length, mask(ARMOURS.length),
+                weaponStart, WEAPONS.length, mask(WEAPONS.length)));
+    }
+
+    private static Equipment equipment(Object[] row) {
+        return new Equipment((String) row[0], (String) row[1]);
+    }
+
+    private static long mask(int length) {
+        return (1L << length) - 1;
+    }
+
+    /**
+     * @return the items as a SQL array literal, indexed from 1
+     */
+    private static String array(String[] items) {
+        StringJoiner array = new StringJoiner(", ", "ARRAY[", "]");
+        for (String item : items) {
+            array.add("'" + item.replace("'", "''") + "'");
+        }
+        return array.toString();
+    }
+}
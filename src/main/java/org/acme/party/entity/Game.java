@@ -1,14 +1,25 @@
 package org.acme.party.entity;
 
 import io.quarkus.hibernate.reactive.panache.PanacheEntity;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Row;
+import io.vertx.mutiny.sqlclient.Tuple;
 import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Date;
 
 @Entity
+@Table(indexes = @Index(name = "game_user_over_created_idx", columnList = "userId, over, created"))
 @Getter
 @Setter
 @ToString
@@ -23,4 +34,67 @@ public class Game extends PanacheEntity {
     public Integer lost;
     public Boolean over;
     public Date created;
+    @Version
+    public Long version;
+
+    /**
+     * Marks all the running games of the given user as over with a single bulk update
+     * on the (userId, over, created) index.
+     *
+     * @param userId the owner of the games
+     * @return a {@link Uni} containing the number of games that were closed
+     */
+    public static Uni<Integer> gameOver(String userId) {
+        return update("over = true, version = version + 1 WHERE userId = ?1 AND over = false", userId);
+    }
+
+    /**
+     * Atomically adds the given number of victories and losses to a game, without reading it first,
+     * so that concurrent battle results never lose an increment. The version is bumped as well, so that a concurrent
+     * read-modify-write of the same game conflicts instead of overwriting the counters.
+     *
+     * @param gameId the game to update
+     * @param won    the number of victories to add
+     * @param lost   the number of losses to add
+     * @return a {@link Uni} containing the number of updated games, 0 if the game does not exist
+     */
+    public static Uni<Integer> recordResults(Long gameId, int won, int lost) {
+        return update("won = won + ?1, lost = lost + ?2, version = version + 1 WHERE id = ?3", won, lost, gameId);
+    }
+
+    /**
+     * Streams the games, ordered by ID, without loading the whole result in memory.
+     *
+     * @param client the reactive pool
+     * @param userId the owner of the games, or null to stream the games of every user
+     * @param over   when not null, only the games with this over status are streamed
+     * @return a {@link Multi} emitting the games as they are read from the database
+     */
+    public static Multi<Game> stream(Pool client, String userId, Boolean over) {
+        StringBuilder sql = new StringBuilder("SELECT id, userId, won, lost, \"over\", created, version FROM Game WHERE true");
+        Tuple args = Tuple.tuple();
+        if (userId != null) {
+            args.addString(userId);
+            sql.append(" AND userId = $").append(args.size());
+        }
+        if (over != null) {
+            args.addBoolean(over);
+            sql.append(" AND \"over\" = $").append(args.size());
+        }
+        sql.append(" ORDER BY id");
+        return RowStreams.stream(client, sql.toString(), args, Game::fromRow);
+    }
+
+    static Game fromRow(Row row) {
+        Game game = new Game();
+        game.id = row.getLong(0);
+        game.userId = row.getString(1);
+        game.won = row.getInteger(2);
+        game.lost = row.getInteger(3);
+        game.over = row.getBoolean(4);
+        LocalDateTime created = row.getLocalDateTime(5);
+        game.created = created != null ? Date.from(created.atZone(ZoneId.systemDefault()).toInstant()) : null;
+        game.version = row.getLong(6);
+        return game;
+    }
 }
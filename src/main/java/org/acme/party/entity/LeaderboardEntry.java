@@ -0,0 +1,129 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.smallrye.mutiny.Uni;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.acme.party.model.LeaderboardDrift;
+import org.acme.party.model.Standing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The victories and losses of a user summed over the user's games, one row per user. It is updated in the same
+ * transaction as the game counters, so the leaderboard never needs to aggregate the {@link Game} table, and is small
+ * enough to be loaded whole at startup.
+ */
+@Entity
+@Getter
+@Setter
+@ToString
+public class LeaderboardEntry extends PanacheEntityBase {
+
+    private static final String GAME_TOTALS = "SELECT userId, coalesce(sum(won), 0) AS won, coalesce(sum(lost), 0) AS lost "
+            + "FROM Game WHERE userId IS NOT NULL GROUP BY userId";
+
+    @Id
+    public String userId;
+    public Long won;
+    public Long lost;
+
+    /**
+     * Adds the results of the given games to the totals of their owners with a single statement.
+     *
+     * @param resultsByGame the victories and losses to add, by game ID
+     * @return a {@link Uni} containing the new totals of the owners of the games
+     */
+    public static Uni<List<Standing>> addResults(Map<Long, int[]> resultsByGame) {
+        if (resultsByGame.isEmpty()) {
+            return Uni.createFrom().item(List.of());
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO LeaderboardEntry (userId, won, lost) "
+                + "SELECT g.userId, sum(r.won), sum(r.lost) FROM (VALUES ");
+        for (int i = 0; i < resultsByGame.size(); i++) {
+            sql.append(i > 0 ? ", " : "")
+                    .append("(?").append(3 * i + 1).append(", ?").append(3 * i + 2).append(", ?").append(3 * i + 3).append(')');
+        }
+        sql.append(") AS r (gameId, won, lost) JOIN Game g ON g.id = r.gameId GROUP BY g.userId "
+                + "ON CONFLICT (userId) DO UPDATE SET won = LeaderboardEntry.won + excluded.won, "
+                + "lost = LeaderboardEntry.lost + excluded.lost "
+                + "RETURNING userId, won, lost");
+
+        return Panache.getSession().chain(session -> {
+                    var query = session.createNativeQuery(sql.toString());
+                    int i = 1;
+                    for (Map.Entry<Long, int[]> results : resultsByGame.entrySet()) {
+                        query.setParameter(i++, results.getKey());
+                        query.setParameter(i++, results.getValue()[0]);
+                        query.setParameter(i++, results.getValue()[1]);
+                    }
+                    return query.getResultList();
+                })
+                .map(LeaderboardEntry::toStandings);
+    }
+
+    /**
+     * Recomputes every total from the {@link Game} table. Concurrent updates of the totals wait for the rebuild.
+     *
+     * @return a {@link Uni} containing the new totals
+     */
+    public static Uni<List<Standing>> rebuild() {
+        return Panache.getSession().chain(session -> session
+                        .createNativeQuery("LOCK TABLE LeaderboardEntry IN EXCLUSIVE MODE").executeUpdate()
+                        .chain(() -> session.createNativeQuery("DELETE FROM LeaderboardEntry").executeUpdate())
+                        .chain(() -> session.createNativeQuery("INSERT INTO LeaderboardEntry (userId, won, lost) "
+                                + "SELECT userId, won, lost FROM (" + GAME_TOTALS + ") g WHERE won + lost > 0 "
+                                + "RETURNING userId, won, lost").getResultList()))
+                .map(LeaderboardEntry::toStandings);
+    }
+
+    /**
+     * @return a {@link Uni} containing all the totals, to be loaded in memory
+     */
+    public static Uni<List<Standing>> standings() {
+        return Panache.getSession().chain(session -> session
+                        .createNativeQuery("SELECT userId, won, lost FROM LeaderboardEntry").getResultList())
+                .map(LeaderboardEntry::toStandings);
+    }
+
+    /**
+     * Compares the totals with the sum of the {@link Game} rows of each user. A user missing on one side counts as
+     * no victories and no losses.
+     *
+     * @return a {@link Uni} containing the users whose totals do not match their games, by user ID
+     */
+    public static Uni<List<LeaderboardDrift>> drift() {
+        return Panache.getSession().chain(session -> session.createNativeQuery(
+                        "SELECT coalesce(l.userId, g.userId), coalesce(l.won, 0), coalesce(l.lost, 0), "
+                                + "coalesce(g.won, 0), coalesce(g.lost, 0) "
+                                + "FROM LeaderboardEntry l FULL OUTER JOIN (" + GAME_TOTALS + ") g ON g.userId = l.userId "
+                                + "WHERE coalesce(l.won, 0) <> coalesce(g.won, 0) OR coalesce(l.lost, 0) <> coalesce(g.lost, 0) "
+                                + "ORDER BY 1").getResultList())
+                .map(rows -> {
+                    List<LeaderboardDrift> drifts = new ArrayList<>(rows.size());
+                    for (Object row : rows) {
+                        Object[] columns = (Object[]) row;
+                        drifts.add(new LeaderboardDrift((String) columns[0],
+                                ((Number) columns[1]).longValue(), ((Number) columns[2]).longValue(),
+                                ((Number) columns[3]).longValue(), ((Number) columns[4]).longValue()));
+                    }
+                    return drifts;
+                });
+    }
+
+    private static List<Standing> toStandings(List<?> rows) {
+        List<Standing> standings = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            Object[] columns = (Object[]) row;
+            standings.add(new Standing((String) columns[0],
+                    ((Number) columns[1]).longValue(), ((Number) columns[2]).longValue()));
+        }
+        return standings;
+    }
+}
@@ -0,0 +1,110 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.hibernate.reactive.panache.PanacheEntity;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.json.JsonObject;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message waiting to be published on an outgoing channel. It is written in the same transaction as the change
+ * it announces, and published later by the relay, so that a rolled back change is never announced and a broker
+ * outage only makes the table grow.
+ */
+@Entity
+@Table(indexes = {
+        @Index(name = "outbox_message_pending_idx", columnList = "channel, sentAt, id"),
+        // for the cleanup of the sent messages, which spans the channels
+        @Index(name = "outbox_message_sent_idx", columnList = "sentAt")})
+@Getter
+@Setter
+@ToString
+public class OutboxMessage extends PanacheEntity {
+
+    public String channel;
+    @Column(columnDefinition = "text")
+    public String payload;
+    @Column(columnDefinition = "text")
+    public String headers;
+    public Instant createdAt;
+    public Instant sentAt;
+
+    /**
+     * @param channel the outgoing channel the payload is published on
+     * @param payload the payload, stored as JSON
+     * @return a new pending message, to be persisted
+     */
+    public static OutboxMessage of(String channel, Object payload) {
+        return of(channel, payload, Map.of());
+    }
+
+    /**
+     * @param channel the outgoing channel the payload is published on
+     * @param payload the payload, stored as JSON
+     * @param headers the headers the payload is published with
+     * @return a new pending message, to be persisted
+     */
+    public static OutboxMessage of(String channel, Object payload, Map<String, String> headers) {
+        OutboxMessage message = new OutboxMessage();
+        message.channel = channel;
+        message.payload = JsonObject.mapFrom(payload).encode();
+        message.headers = new JsonObject(new HashMap<>(headers)).encode();
+        message.createdAt = Instant.now();
+        return message;
+    }
+
+    /**
+     * Locks the oldest pending messages of a channel for the current transaction, skipping the ones already locked
+     * by another relay, so that several replicas can drain the outbox concurrently.
+     *
+     * @param channel the outgoing channel
+     * @param limit   the maximum number of messages to lock
+     * @return a {@link Uni} containing the locked messages, oldest first
+     */
+    public static Uni<List<OutboxMessage>> lockPending(String channel, int limit) {
+        return Panache.getSession().chain(session -> session
+                .createNativeQuery("SELECT * FROM OutboxMessage WHERE channel = ?1 AND sentAt IS NULL "
+                        + "ORDER BY id LIMIT ?2 FOR UPDATE SKIP LOCKED", OutboxMessage.class)
+                .setParameter(1, channel)
+                .setParameter(2, limit)
+                .getResultList());
+    }
+
+    /**
+     * @param before the oldest publication time to keep
+     * @return a {@link Uni} containing the number of deleted messages published before the given time
+     */
+    public static Uni<Long> deleteSentBefore(Instant before) {
+        return delete("sentAt < ?1", before);
+    }
+
+    /**
+     * @param type the type of the payload
+     * @return the payload decoded from JSON
+     */
+    public <T> T payloadAs(Class<T> type) {
+        return new JsonObject(payload).mapTo(type);
+    }
+
+    /**
+     * @return the headers the payload is published with, empty for the messages written without
+     */
+    public Map<String, String> headersAsMap() {
+        Map<String, String> map = new HashMap<>();
+        if (headers != null) {
+            new JsonObject(headers).forEach(entry -> map.put(entry.getKey(), String.valueOf(entry.getValue())));
+        }
+        return map;
+    }
+}
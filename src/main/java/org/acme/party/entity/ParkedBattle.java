@@ -0,0 +1,140 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.PanacheEntity;
+import io.quarkus.panache.common.Sort;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.json.JsonObject;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A battles-end record that could not be applied, parked to be tried again later so that it does not hold up the
+ * records behind it. The record is kept as received, payload and headers, with the number of attempts made and
+ * the last failure. A record that failed too many times is dead: it is only tried again once replayed.
+ */
+@Entity
+@Table(indexes = @Index(name = "parked_battle_due_idx", columnList = "dead, nextAttemptAt"))
+@Getter
+@Setter
+@ToString(exclude = "payload")
+public class ParkedBattle extends PanacheEntity {
+
+    public String recordKey;
+    @Column(columnDefinition = "bytea")
+    public byte[] payload;
+    @Column(columnDefinition = "text")
+    public String headers;
+    public Integer attempts;
+    public Instant parkedAt;
+    public Instant nextAttemptAt;
+    public Boolean dead;
+    public String failureClass;
+    @Column(columnDefinition = "text")
+    public String failure;
+
+    /**
+     * @param recordKey     the key of the record
+     * @param payload       the payload of the record
+     * @param headers       the headers of the record
+     * @param failure       why the record could not be applied
+     * @param nextAttemptAt when to try again
+     * @return a new parked record, after its first attempt, to be persisted
+     */
+    public static ParkedBattle of(String recordKey, byte[] payload, Map<String, String> headers, Throwable failure,
+                                  Instant nextAttemptAt) {
+        ParkedBattle parked = new ParkedBattle();
+        parked.recordKey = recordKey;
+        parked.payload = payload;
+        parked.headers = new JsonObject(new HashMap<>(headers)).encode();
+        parked.attempts = 1;
+        parked.parkedAt = Instant.now();
+        parked.nextAttemptAt = nextAttemptAt;
+        parked.dead = false;
+        parked.recordFailure(failure);
+        return parked;
+    }
+
+    /**
+     * @param limit the maximum number of records
+     * @return a {@link Uni} containing the records due for another attempt, the longest waiting first
+     */
+    public static Uni<List<ParkedBattle>> due(int limit) {
+        return find("dead = false AND nextAttemptAt <= ?1", Sort.by("nextAttemptAt"), Instant.now())
+                .range(0, limit - 1).list();
+    }
+
+    /**
+     * @param after the ID after which the page starts
+     * @param limit the maximum number of records
+     * @return a {@link Uni} containing a page of the dead records, by ID
+     */
+    public static Uni<List<ParkedBattle>> dead(long after, int limit) {
+        return find("dead = true AND id > ?1", Sort.by("id"), after).range(0, limit - 1).list();
+    }
+
+    /**
+     * Claims the next attempt of a record, so that no other replica makes it concurrently, and schedules the one
+     * after in case this attempt never completes.
+     *
+     * @param id            the ID of the record
+     * @param attempts      the number of attempts the record was read with
+     * @param nextAttemptAt when to try again if this attempt fails
+     * @return a {@link Uni} containing true if the attempt is claimed, false if another replica claimed it first
+     */
+    public static Uni<Boolean> claimAttempt(Long id, int attempts, Instant nextAttemptAt) {
+        return update("attempts = attempts + 1, nextAttemptAt = ?3 WHERE id = ?1 AND attempts = ?2 AND dead = false",
+                id, attempts, nextAttemptAt)
+                .map(updated -> updated > 0);
+    }
+
+    /**
+     * Records the failure of the last attempt of a record.
+     *
+     * @param id      the ID of the record
+     * @param failure why the record could not be applied
+     * @param dead    true if the record must not be tried again
+     * @return a {@link Uni} containing the number of updated records
+     */
+    public static Uni<Integer> attemptFailed(Long id, Throwable failure, boolean dead) {
+        return update("dead = ?2, failureClass = ?3, failure = ?4 WHERE id = ?1",
+                id, dead, failure.getClass().getName(), String.valueOf(failure.getMessage()));
+    }
+
+    /**
+     * Schedules dead records to be tried again now, with all their attempts.
+     *
+     * @param id the ID of the dead record, or null to replay all of them
+     * @return a {@link Uni} containing the number of records replayed
+     */
+    public static Uni<Integer> replay(Long id) {
+        return id == null
+                ? update("dead = false, attempts = 0, nextAttemptAt = ?1 WHERE dead = true", Instant.now())
+                : update("dead = false, attempts = 0, nextAttemptAt = ?1 WHERE dead = true AND id = ?2", Instant.now(), id);
+    }
+
+    /**
+     * @return the headers of the record
+     */
+    public Map<String, String> headersAsMap() {
+        Map<String, String> map = new HashMap<>();
+        if (headers != null) {
+            new JsonObject(headers).forEach(entry -> map.put(entry.getKey(), String.valueOf(entry.getValue())));
+        }
+        return map;
+    }
+
+    private void recordFailure(Throwable failure) {
+        this.failureClass = failure.getClass().getName();
+        this.failure = String.valueOf(failure.getMessage());
+    }
+}
@@ -1,11 +1,34 @@
 package org.acme.party.entity;
 
+import io.quarkus.hibernate.reactive.panache.Panache;
 import io.quarkus.hibernate.reactive.panache.PanacheEntity;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Row;
+import io.vertx.mutiny.sqlclient.Tuple;
 import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import lombok.Getter;
 import lombok.Setter;
+import org.acme.party.model.HealthRegen;
+import org.acme.party.model.LevelThresholds;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
 
 @Entity
+@Table(indexes = @Index(name = "party_member_user_hero_idx", columnList = "userId, heroId"))
 @Getter
 @Setter
 public class PartyMember extends PanacheEntity {
@@ -19,5 +42,293 @@ public class PartyMember extends PanacheEntity {
     public String weapon;
     public String armour;
     public Integer level;
+    // when the health was last written, the passive regeneration counts from here, see HealthRegen
+    public Instant healthUpdatedAt;
+    // the battle the member is fighting, so that a late result of an older battle does not end the fight
+    public UUID battleId;
+    @Version
+    public Long version;
+
+    /**
+     * Deletes all the party members owned by the given user with a single bulk statement
+     * on the indexed userId column, without loading the entities.
+     *
+     * @param userId the owner of the party members to delete
+     * @return a {@link Uni} containing the number of deleted party members
+     */
+    public static Uni<Long> deleteByUserId(String userId) {
+        return delete("userId", userId);
+    }
+
+    /**
+     * Inserts a new party member of level 1 with an armour and a weapon claimed from the user's
+     * {@link EquipmentRotation}, claiming them and inserting the member with a single statement. A second one is
+     * only needed when a concurrent transaction creates the rotation of a user seen for the first time.
+     *
+     * @param partyMember the party member to create, its user ID must be set. The ID, the version and the
+     *                    equipment are ignored
+     * @param now         the time the health is written
+     * @return a {@link Uni} containing the created party member
+     */
+    public static Uni<PartyMember> create(PartyMember partyMember, Instant now) {
+        List<Object> parameters = EquipmentRotation.parameters(partyMember.userId);
+        parameters.add(now);
+        // the nullable values are inlined as NULL, so that they do not need a typed null
+        StringJoiner values = new StringJoiner(", ");
+        for (Object value : new Object[]{partyMember.heroId, partyMember.heroName, partyMember.villain,
+                partyMember.fighting, partyMember.health}) {
+            if (value == null) {
+                values.add("NULL");
+            } else {
+                parameters.add(value);
+                values.add("?" + parameters.size());
+            }
+        }
+        // a value of the sequence is the last of a block of the pooled Hibernate generator, no one else takes it
+        String sql = "WITH " + EquipmentRotation.CLAIM + """
+
+                INSERT INTO PartyMember (id, userId, heroId, heroName, villain, fighting, health, weapon, armour, level,
+                  version, healthUpdatedAt, battleId)
+                SELECT nextval('PartyMember_SEQ'), ?1, %s, e.weapon, e.armour, 1, 0, ?8, NULL FROM equipment e
+                RETURNING id, userId, heroId, heroName, villain, fighting, health, weapon, armour, level, version,
+                  healthUpdatedAt, battleId""".formatted(values);
+
+        return Panache.getSession().chain(session -> {
+                    var query = session.createNativeQuery(sql);
+                    for (int i = 0; i < parameters.size(); i++) {
+                        query.setParameter(i + 1, parameters.get(i));
+                    }
+                    return query.getResultList();
+                })
+                .chain(rows -> rows.isEmpty()
+                        // a concurrent transaction created the rotation of the user, it is there by now
+                        ? create(partyMember, now)
+                        : Uni.createFrom().item(fromColumns((Object[]) ((List<?>) rows).get(0))));
+    }
+
+    /**
+     * Heals every member of the user's party below 50 health by 20 points, re-levelling them in the same statement
+     * according to the {@link LevelThresholds}.
+     *
+     * @param userId the owner of the party
+     * @param regen  the passive regeneration the heal starts from
+     * @return a {@link Uni} containing the number of healed party members
+     */
+    public static Uni<Integer> healParty(String userId, HealthRegen regen) {
+        return healParty(userId, 1, regen);
+    }
+
+    /**
+     * Applies several party heals with a single statement: every member below 50 health gets 20 points per heal,
+     * stopping as soon as it reaches 50, which is what the heals would do one after the other. The heals start from
+     * the effective health, regeneration included.
+     *
+     * @param userId the owner of the party
+     * @param times  the number of party heals
+     * @param regen  the passive regeneration the heal starts from
+     * @return a {@link Uni} containing the number of healed party members
+     */
+    public static Uni<Integer> healParty(String userId, int times, HealthRegen regen) {
+        String current = regen.sql("?3");
+        String health = current + " + 20 * least(?2, (69 - " + current + ") / 20)";
+        Instant now = regen.now();
+        return updateHealth("UPDATE PartyMember SET health = " + health + ", level = " + LevelThresholds.sql(health)
+                        + ", healthUpdatedAt = ?4, version = version + 1 WHERE userId = ?1 AND " + current + " < 50",
+                userId, times, HealthRegen.epochSeconds(now), now);
+    }
+
+    /**
+     * Heals a party member by 10 points, re-levelling it in the same statement according to the {@link LevelThresholds}.
+     *
+     * @param id    the party member ID
+     * @param regen the passive regeneration the heal starts from
+     * @return a {@link Uni} containing the number of healed party members, 0 if it does not exist
+     */
+    public static Uni<Integer> heal(Long id, HealthRegen regen) {
+        return heal(id, 1, regen);
+    }
+
+    /**
+     * Applies several heals of a party member with a single statement, starting from its effective health.
+     *
+     * @param id    the party member ID
+     * @param times the number of heals, 10 points each
+     * @param regen the passive regeneration the heal starts from
+     * @return a {@link Uni} containing the number of healed party members, 0 if it does not exist
+     */
+    public static Uni<Integer> heal(Long id, int times, HealthRegen regen) {
+        String health = regen.sql("?3") + " + 10 * ?2";
+        Instant now = regen.now();
+        return updateHealth("UPDATE PartyMember SET health = " + health + ", level = " + LevelThresholds.sql(health)
+                        + ", healthUpdatedAt = ?4, version = version + 1 WHERE id = ?1",
+                id, times, HealthRegen.epochSeconds(now), now);
+    }
+
+    /**
+     * Applies the health penalty of the battles a user lost with a single statement: the members above 20 health
+     * lose 10 points per lost battle, stopping as soon as they drop to 20 or below. The penalty is taken from the
+     * effective health, regeneration included.
+     *
+     * @param userId   the owner of the party
+     * @param losses   the number of lost battles
+     * @param fighters the members whose fight ends with the battle results, their health is taken from them instead
+     * @param regen    the passive regeneration the penalty starts from
+     * @return a {@link Uni} containing the number of party members that lost health
+     */
+    public static Uni<Integer> applyLosses(String userId, long losses, Collection<Long> fighters, HealthRegen regen) {
+        String current = regen.sql("?3");
+        Instant now = regen.now();
+        List<Object> parameters = new ArrayList<>(List.of(userId, losses, HealthRegen.epochSeconds(now), now));
+        StringJoiner excluded = new StringJoiner(", ", "(", ")");
+        for (Long fighter : fighters) {
+            parameters.add(fighter);
+            excluded.add("?" + parameters.size());
+        }
+        return updateHealth("UPDATE PartyMember SET health = " + current + " - 10 * least(?2, (" + current + " - 11) / 10), "
+                        + "healthUpdatedAt = ?4, version = version + 1 WHERE userId = ?1 AND " + current + " > 20"
+                        + (fighters.isEmpty() ? "" : " AND id NOT IN " + excluded),
+                parameters.toArray());
+    }
+
+    private static Uni<Integer> updateHealth(String sql, Object... parameters) {
+        return Panache.getSession().chain(session -> {
+            var query = session.createNativeQuery(sql);
+            for (int i = 0; i < parameters.length; i++) {
+                query.setParameter(i + 1, parameters[i]);
+            }
+            return query.executeUpdate();
+        });
+    }
+
+    /**
+     * Retrieves only the hero IDs of the party members owned by the given user, through the (userId, heroId) index,
+     * without hydrating the entities.
+     *
+     * @param userId the owner of the party members
+     * @return a {@link Uni} containing the hero IDs of the user's party
+     */
+    public static Uni<List<Long>> heroIdsOf(String userId) {
+        return Panache.getSession().chain(session -> session
+                .createSelectionQuery("select heroId from PartyMember where userId = ?1 and heroId is not null", Long.class)
+                .setParameter(1, userId)
+                .getResultList());
+    }
+
+    /**
+     * @param battleIds the IDs of battles
+     * @return a {@link Uni} containing the IDs of the given battles that a party member is still fighting
+     */
+    public static Uni<Set<UUID>> fightingBattles(Collection<UUID> battleIds) {
+        return Panache.getSession().chain(session -> session
+                        .createSelectionQuery("select battleId from PartyMember where battleId in ?1", UUID.class)
+                        .setParameter(1, battleIds)
+                        .getResultList())
+                .map(HashSet::new);
+    }
+
+    /**
+     * Streams the party members, ordered by ID, without loading the whole result in memory.
+     *
+     * @param client the reactive pool
+     * @param userId the owner of the party members, or null to stream the party members of every user
+     * @return a {@link Multi} emitting the party members as they are read from the database
+     */
+    public static Multi<PartyMember> stream(Pool client, String userId) {
+        String columns = "SELECT id, userId, heroId, heroName, villain, fighting, health, weapon, armour, level, version, "
+                + "healthUpdatedAt, battleId FROM PartyMember";
+        return userId == null
+                ? RowStreams.stream(client, columns + " ORDER BY id", Tuple.tuple(), PartyMember::fromRow)
+                : RowStreams.stream(client, columns + " WHERE userId = $1 ORDER BY id", Tuple.of(userId), PartyMember::fromRow);
+    }
+
+    static PartyMember fromRow(Row row) {
+        PartyMember partyMember = new PartyMember();
+        partyMember.id = row.getLong(0);
+        partyMember.userId = row.getString(1);
+        partyMember.heroId = row.getLong(2);
+        partyMember.heroName = row.getString(3);
+        partyMember.villain = row.getString(4);
+        partyMember.fighting = row.getBoolean(5);
+        partyMember.health = row.getLong(6);
+        partyMember.weapon = row.getString(7);
+        partyMember.armour = row.getString(8);
+        partyMember.level = row.getInteger(9);
+        partyMember.version = row.getLong(10);
+        OffsetDateTime healthUpdatedAt = row.getOffsetDateTime(11);
+        partyMember.healthUpdatedAt = healthUpdatedAt != null ? healthUpdatedAt.toInstant() : null;
+        partyMember.battleId = row.getUUID(12);
+        return partyMember;
+    }
+
+    /**
+     * Starts a fight with a single conditional statement: the party member is flagged as fighting only if it
+     * belongs to the user, is alive, is not already fighting and the game exists. The version is bumped, so a
+     * concurrent read-modify-write of the party member conflicts instead of clearing the fighting flag. The member
+     * fights with its effective health, which is written with the flag since it stops regenerating while fighting.
+     * The ID of the battle is stored with the flag: only the result of this battle ends the fight.
+     *
+     * @param id       the party member ID
+     * @param userId   the user requesting the fight
+     * @param gameId   the game the fight belongs to
+     * @param villain  the villain to fight
+     * @param battleId the ID of the battle
+     * @param regen    the passive regeneration the fight starts from
+     * @return a {@link Uni} containing the updated party member, or null if one of the conditions does not hold
+     */
+    public static Uni<PartyMember> startFight(Long id, String userId, Long gameId, String villain, UUID battleId,
+                                              HealthRegen regen) {
+        String health = regen.sql("?5");
+        Instant now = regen.now();
+        return Panache.getSession().chain(session -> session.createNativeQuery("""
+                        UPDATE PartyMember SET fighting = true, villain = ?4, health = %s, level = %s, healthUpdatedAt = ?6,
+                          battleId = ?7, version = version + 1
+                        WHERE id = ?1 AND userId = ?2 AND health > 0 AND fighting IS NOT TRUE
+                          AND EXISTS (SELECT 1 FROM Game WHERE id = ?3)
+                        RETURNING id, userId, heroId, heroName, villain, fighting, health, weapon, armour, level, version,
+                          healthUpdatedAt, battleId""".formatted(health, LevelThresholds.sql(health)))
+                        .setParameter(1, id)
+                        .setParameter(2, userId)
+                        .setParameter(3, gameId)
+                        .setParameter(4, villain)
+                        .setParameter(5, HealthRegen.epochSeconds(now))
+                        .setParameter(6, now)
+                        .setParameter(7, battleId)
+                        .getResultList())
+                .map(rows -> rows.isEmpty() ? null : fromColumns((Object[]) ((List<?>) rows).get(0)));
+    }
+
+    static PartyMember fromColumns(Object[] columns) {
+        PartyMember partyMember = new PartyMember();
+        partyMember.id = columns[0] != null ? ((Number) columns[0]).longValue() : null;
+        partyMember.userId = (String) columns[1];
+        partyMember.heroId = columns[2] != null ? ((Number) columns[2]).longValue() : null;
+        partyMember.heroName = (String) columns[3];
+        partyMember.villain = (String) columns[4];
+        partyMember.fighting = (Boolean) columns[5];
+        partyMember.health = columns[6] != null ? ((Number) columns[6]).longValue() : null;
+        partyMember.weapon = (String) columns[7];
+        partyMember.armour = (String) columns[8];
+        partyMember.level = columns[9] != null ? ((Number) columns[9]).intValue() : null;
+        partyMember.version = columns[10] != null ? ((Number) columns[10]).longValue() : null;
+        partyMember.healthUpdatedAt = toInstant(columns[11]);
+        partyMember.battleId = toUuid(columns[12]);
+        return partyMember;
+    }
+
+    private static UUID toUuid(Object column) {
+        if (column instanceof UUID uuid) {
+            return uuid;
+        }
+        return column != null ? UUID.fromString(column.toString()) : null;
+    }
 
+    private static Instant toInstant(Object column) {
+        if (column instanceof Instant instant) {
+            return instant;
+        }
+        if (column instanceof OffsetDateTime offsetDateTime) {
+            return offsetDateTime.toInstant();
+        }
+        return column instanceof Date date ? date.toInstant() : null;
+    }
 }
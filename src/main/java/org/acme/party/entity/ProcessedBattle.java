@@ -0,0 +1,74 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.smallrye.mutiny.Uni;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The ID of a battle result already applied. It is written in the same transaction as the result, so a result
+ * redelivered by the broker is recognised and skipped even across restarts.
+ */
+@Entity
+@Table(indexes = @Index(name = "processed_battle_processed_at_idx", columnList = "processedAt"))
+@Getter
+@Setter
+public class ProcessedBattle extends PanacheEntityBase {
+
+    @Id
+    public UUID id;
+    public Instant processedAt;
+
+    /**
+     * Records the given battle IDs with a single statement, ignoring the ones already recorded.
+     *
+     * @param ids the battle IDs, without duplicates
+     * @return a {@link Uni} containing the IDs that were not recorded yet, i.e. the battles to apply
+     */
+    public static Uni<Set<UUID>> claim(List<UUID> ids) {
+        if (ids.isEmpty()) {
+            return Uni.createFrom().item(Set.of());
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO ProcessedBattle (id, processedAt) VALUES ");
+        for (int i = 1; i <= ids.size(); i++) {
+            sql.append(i > 1 ? ", " : "").append("(?").append(i).append(", ?").append(ids.size() + 1).append(')');
+        }
+        sql.append(" ON CONFLICT (id) DO NOTHING RETURNING id");
+
+        return Panache.getSession().chain(session -> {
+                    var query = session.createNativeQuery(sql.toString());
+                    for (int i = 0; i < ids.size(); i++) {
+                        query.setParameter(i + 1, ids.get(i));
+                    }
+                    query.setParameter(ids.size() + 1, Instant.now());
+                    return query.getResultList();
+                })
+                .map(rows -> {
+                    Set<UUID> claimed = new HashSet<>();
+                    for (Object row : rows) {
+                        Object id = row instanceof Object[] columns ? columns[0] : row;
+                        claimed.add(id instanceof UUID uuid ? uuid : UUID.fromString(String.valueOf(id)));
+                    }
+                    return claimed;
+                });
+    }
+
+    /**
+     * @param before the oldest processing time to keep
+     * @return a {@link Uni} containing the number of deleted IDs processed before the given time
+     */
+    public static Uni<Long> deleteProcessedBefore(Instant before) {
+        return delete("processedAt < ?1", before);
+    }
+}
@@ -0,0 +1,37 @@
+package org.acme.party.entity;
+
+import io.smallrye.mutiny.Multi;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Row;
+import io.vertx.mutiny.sqlclient.Tuple;
+
+import java.util.function.Function;
+
+/**
+ * Streams query results straight from the reactive PG client through a server side cursor, so that only
+ * {@link #FETCH_SIZE} rows are held in memory at any time, whatever the size of the result.
+ */
+public final class RowStreams {
+
+    static final int FETCH_SIZE = 200;
+
+    private RowStreams() {
+    }
+
+    /**
+     * @param client the reactive pool
+     * @param sql    the query, using $n placeholders
+     * @param args   the query arguments
+     * @param mapper maps a row to the streamed item
+     * @return a {@link Multi} emitting the mapped rows as they are fetched; the cursor, its transaction and the
+     * connection are released when the stream terminates or is cancelled
+     */
+    public static <T> Multi<T> stream(Pool client, String sql, Tuple args, Function<Row, T> mapper) {
+        return client.getConnection().onItem().transformToMulti(connection -> connection.begin()
+                .onItem().transformToMulti(transaction -> connection.prepare(sql)
+                        .onItem().transformToMulti(statement -> statement.createStream(FETCH_SIZE, args).toMulti())
+                        .onTermination().call(() -> transaction.rollback()))
+                .onTermination().call(() -> connection.close()))
+                .map(mapper);
+    }
+}
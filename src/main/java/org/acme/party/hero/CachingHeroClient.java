@@ -0,0 +1,109 @@
+package org.acme.party.hero;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link HeroClient} keeping an in-memory snapshot of the heroes returned by the camp-service.
+ * <ul>
+ *     <li>the snapshot is served for {@code party.hero-cache.ttl}, and refreshed in the background once it is
+ *     older than the ttl minus {@code party.hero-cache.refresh-ahead}</li>
+ *     <li>concurrent misses share a single in-flight request</li>
+ *     <li>if the camp-service cannot be reached, the stale snapshot is served</li>
+ * </ul>
+ * Lookups are counted by {@code hero.cache.requests} (result hit, miss or stale) and refreshes by
+ * {@code hero.cache.refreshes} (outcome success or failure).
+ */
+@ApplicationScoped
+public class CachingHeroClient implements HeroClient {
+
+    @Inject
+    GraphQLHeroClient delegate;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.hero-cache.ttl", defaultValue = "5m")
+    Duration ttl;
+
+    @ConfigProperty(name = "party.hero-cache.refresh-ahead", defaultValue = "1m")
+    Duration refreshAhead;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicReference<Uni<List<Hero>>> inFlight = new AtomicReference<>();
+
+    private Counter hits;
+    private Counter misses;
+    private Counter stale;
+    private Counter refreshed;
+    private Counter failed;
+
+    @PostConstruct
+    void init() {
+        hits = registry.counter("hero.cache.requests", "result", "hit");
+        misses = registry.counter("hero.cache.requests", "result", "miss");
+        stale = registry.counter("hero.cache.requests", "result", "stale");
+        refreshed = registry.counter("hero.cache.refreshes", "outcome", "success");
+        failed = registry.counter("hero.cache.refreshes", "outcome", "failure");
+    }
+
+    @Override
+    public Uni<List<Hero>> allHeroes() {
+        Snapshot current = snapshot.get();
+        long now = System.nanoTime();
+
+        if (current != null && now - current.loadedAt < ttl.toNanos()) {
+            hits.increment();
+            if (now - current.loadedAt >= ttl.minus(refreshAhead).toNanos()) {
+                refresh().subscribe().with(
+                        heroes -> Log.debug("Hero snapshot refreshed ahead of expiry"),
+                        throwable -> Log.warn("Cannot refresh the hero snapshot ahead of expiry", throwable));
+            }
+            return Uni.createFrom().item(current.heroes);
+        }
+
+        misses.increment();
+        return refresh()
+                .onFailure(throwable -> current != null).recoverWithItem(throwable -> {
+                    Log.warn("Serving a stale hero snapshot", throwable);
+                    stale.increment();
+                    return current.heroes;
+                });
+    }
+
+    /**
+     * Loads the heroes from the camp-service, unless a load is already running, in which case the running
+     * load is shared.
+     */
+    private Uni<List<Hero>> refresh() {
+        Uni<List<Hero>> running = inFlight.get();
+        if (running != null) {
+            return running;
+        }
+
+        Uni<List<Hero>> load = Uni.createFrom().deferred(() -> delegate.allHeroes())
+                .onItem().transform(List::copyOf)
+                .onItem().invoke(heroes -> {
+                    snapshot.set(new Snapshot(heroes, System.nanoTime()));
+                    refreshed.increment();
+                })
+                .onFailure().invoke(throwable -> failed.increment())
+                .onTermination().invoke(() -> inFlight.set(null))
+                .memoize().indefinitely();
+
+        return inFlight.compareAndSet(null, load) ? load : refresh();
+    }
+
+    private record Snapshot(List<Hero> heroes, long loadedAt) {
+    }
+}
@@ -0,0 +1,258 @@
+package org.acme.party.model;
+
+import org.acme.party.entity.PartyMember;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of the battle messages, carrying only the IDs, the health, the hero name and the villain.
+ * <p>
+ * Layout, version 1:
+ * <pre>
+ * version  1 byte
+ * type     1 byte, 'R' for a {@link BattleRequest}, 'E' for a {@link BattleEnd}
+ * flags    1 byte, which of the optional fields below are present, and the outcome of the battle
+ * id       16 bytes, the battle UUID
+ * gameId   zig-zag varint
+ * fighter  the party member: ID and health as zig-zag varints, then user ID, hero name and villain as strings
+ * </pre>
+ * Strings are a varint of the UTF-8 length plus one, 0 meaning null, followed by the bytes. Later versions may only
+ * append fields, so a reader ignores the trailing bytes it does not know. The first byte of a binary message is
+ * always below any byte a JSON document can start with, see {@link #isBinary(byte[])}.
+ */
+public final class BattleCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte REQUEST = 'R';
+    private static final byte END = 'E';
+
+    private static final int HAS_ID = 0x01;
+    private static final int HAS_GAME = 0x02;
+    private static final int HAS_FIGHTER = 0x04;
+    private static final int HAS_FIGHTER_ID = 0x08;
+    private static final int HAS_HEALTH = 0x10;
+    private static final int HAS_OUTCOME = 0x20;
+    private static final int VICTORY = 0x40;
+
+    private BattleCodec() {
+    }
+
+    /**
+     * @param payload a message payload
+     * @return true if the payload is a binary message, false if it is JSON
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && payload[0] >= 1 && payload[0] < '\t';
+    }
+
+    public static byte[] encode(BattleRequest request) {
+        PartyMember p = request.partyMember;
+        Fighter fighter = p == null ? null : new Fighter(p.id, p.userId, p.heroName, p.villain, p.health);
+        return encode(REQUEST, request.id, request.gameId, fighter, request.isVictory);
+    }
+
+    public static byte[] encode(BattleEnd battleEnd) {
+        return encode(END, battleEnd.id, battleEnd.gameId, battleEnd.partyMember, battleEnd.isVictory);
+    }
+
+    public static BattleRequest decodeRequest(byte[] payload) {
+        Reader reader = new Reader(payload, REQUEST);
+        BattleRequest request = new BattleRequest();
+        request.id = reader.id;
+        request.gameId = reader.gameId;
+        request.isVictory = reader.victory;
+        if (reader.fighter != null) {
+            PartyMember p = new PartyMember();
+            p.id = reader.fighter.id;
+            p.userId = reader.fighter.userId;
+            p.heroName = reader.fighter.heroName;
+            p.villain = reader.fighter.villain;
+            p.health = reader.fighter.health;
+            request.partyMember = p;
+        }
+        return request;
+    }
+
+    public static BattleEnd decodeEnd(byte[] payload) {
+        Reader reader = new Reader(payload, END);
+        BattleEnd battleEnd = new BattleEnd();
+        battleEnd.id = reader.id;
+        battleEnd.gameId = reader.gameId;
+        battleEnd.isVictory = reader.victory;
+        battleEnd.partyMember = reader.fighter;
+        return battleEnd;
+    }
+
+    private static byte[] encode(byte type, UUID id, Long gameId, Fighter fighter, Boolean victory) {
+        int flags = (id != null ? HAS_ID : 0)
+                | (gameId != null ? HAS_GAME : 0)
+                | (fighter != null ? HAS_FIGHTER : 0)
+                | (fighter != null && fighter.id != null ? HAS_FIGHTER_ID : 0)
+                | (fighter != null && fighter.health != null ? HAS_HEALTH : 0)
+                | (victory != null ? HAS_OUTCOME : 0)
+                | (Boolean.TRUE.equals(victory) ? VICTORY : 0);
+
+        Writer writer = new Writer();
+        writer.put(VERSION);
+        writer.put(type);
+        writer.put((byte) flags);
+        if (id != null) {
+            writer.putLong(id.getMostSignificantBits());
+            writer.putLong(id.getLeastSignificantBits());
+        }
+        if (gameId != null) {
+            writer.putVarLong(gameId);
+        }
+        if (fighter != null) {
+            if (fighter.id != null) {
+                writer.putVarLong(fighter.id);
+            }
+            if (fighter.health != null) {
+                writer.putVarLong(fighter.health);
+            }
+            writer.putString(fighter.userId);
+            writer.putString(fighter.heroName);
+            writer.putString(fighter.villain);
+        }
+        return writer.toByteArray();
+    }
+
+    private static final class Writer {
+        private byte[] bytes = new byte[64];
+        private int size;
+
+        void put(byte b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = b;
+        }
+
+        void putLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                put((byte) (value >>> shift));
+            }
+        }
+
+        void putVarLong(long value) {
+            putUnsignedVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void putUnsignedVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+
+        void putString(String value) {
+            if (value == null) {
+                putUnsignedVarLong(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putUnsignedVarLong(utf8.length + 1L);
+            for (byte b : utf8) {
+                put(b);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        UUID id;
+        Long gameId;
+        Fighter fighter;
+        Boolean victory;
+
+        Reader(byte[] bytes, byte expectedType) {
+            this.bytes = bytes;
+            if (!isBinary(bytes)) {
+                throw new IllegalArgumentException("Not a binary battle message");
+            }
+            position = 1;
+            byte type = get();
+            if (type != expectedType) {
+                throw new IllegalArgumentException("Unexpected battle message type " + (char) type);
+            }
+            int flags = get();
+            if ((flags & HAS_ID) != 0) {
+                id = new UUID(getLong(), getLong());
+            }
+            if ((flags & HAS_GAME) != 0) {
+                gameId = getVarLong();
+            }
+            if ((flags & HAS_FIGHTER) != 0) {
+                fighter = new Fighter();
+                if ((flags & HAS_FIGHTER_ID) != 0) {
+                    fighter.id = getVarLong();
+                }
+                if ((flags & HAS_HEALTH) != 0) {
+                    fighter.health = getVarLong();
+                }
+                fighter.userId = getString();
+                fighter.heroName = getString();
+                fighter.villain = getString();
+            }
+            if ((flags & HAS_OUTCOME) != 0) {
+                victory = (flags & VICTORY) != 0;
+            }
+        }
+
+        byte get() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Truncated battle message");
+            }
+            return bytes[position++];
+        }
+
+        long getLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (get() & 0xFF);
+            }
+            return value;
+        }
+
+        long getVarLong() {
+            long value = getUnsignedVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long getUnsignedVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in battle message");
+        }
+
+        String getString() {
+            long length = getUnsignedVarLong();
+            if (length == 0) {
+                return null;
+            }
+            int size = (int) (length - 1);
+            if (size < 0 || size > bytes.length - position) {
+                throw new IllegalArgumentException("Truncated battle message");
+            }
+            String value = new String(bytes, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+    }
+}
@@ -1,14 +1,15 @@
 package org.acme.party.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.Data;
-import org.acme.party.entity.PartyMember;
 
 import java.util.UUID;
 
 @Data
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class BattleEnd {
     public UUID id;
-    public PartyMember partyMember;
+    public Fighter partyMember;
     public Long gameId;
     public Boolean isVictory;
 }
\ No newline at end of file
@@ -6,4 +6,5 @@ import lombok.Data;
 public class BattleUpdate {
     public String user;
     public String message;
+    public String correlationId;
 }
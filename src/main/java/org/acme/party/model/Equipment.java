@@ -0,0 +1,11 @@
+package org.acme.party.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class Equipment {
+    public String armour;
+    public String weapon;
+}
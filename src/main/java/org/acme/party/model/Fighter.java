@@ -0,0 +1,22 @@
+package org.acme.party.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The party member as seen by the battles: only what a battle result needs to be settled and announced.
+ * The other fields of the full party member, still sent by the JSON producers, are ignored.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class Fighter {
+    public Long id;
+    public String userId;
+    public String heroName;
+    public String villain;
+    public Long health;
+}
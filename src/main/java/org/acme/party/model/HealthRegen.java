@@ -0,0 +1,112 @@
+package org.acme.party.model;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import org.acme.party.entity.PartyMember;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Passive health regeneration of the party members: a member gains {@code party.health.regen.points} health for
+ * every {@code party.health.regen.period} elapsed since its health was last written, up to
+ * {@code party.health.regen.cap}. Nothing is written while a member regenerates: the stored health is the one of
+ * the last write, at {@link PartyMember#healthUpdatedAt}, and the effective health is computed when the member is
+ * read, by {@link #apply(PartyMember, Instant)}, or when its health is written, by the {@link #sql(String)}
+ * expression, which also moves the timestamp forward.
+ * <p>
+ * Members that are fighting do not regenerate, their health is decided by the battle, and neither do dead members,
+ * nor members above the cap. The time always comes from the {@link #now()} of this clock, never from the database.
+ */
+@ApplicationScoped
+public class HealthRegen {
+
+    @ConfigProperty(name = "party.health.regen.points", defaultValue = "1")
+    long points;
+
+    @ConfigProperty(name = "party.health.regen.period", defaultValue = "1m")
+    Duration period;
+
+    @ConfigProperty(name = "party.health.regen.cap", defaultValue = "100")
+    long cap;
+
+    Clock clock = Clock.systemUTC();
+
+    /**
+     * @return the current time of the regeneration
+     */
+    public Instant now() {
+        return clock.instant();
+    }
+
+    /**
+     * @param health    the stored health
+     * @param fighting  whether the member is fighting
+     * @param updatedAt when the health was stored, null if never
+     * @param now       the current time
+     * @return the effective health
+     */
+    public Long health(Long health, Boolean fighting, Instant updatedAt, Instant now) {
+        if (health == null || health <= 0 || health >= cap || Boolean.TRUE.equals(fighting) || updatedAt == null
+                || points <= 0 || !now.isAfter(updatedAt)) {
+            return health;
+        }
+        long periods = Duration.between(updatedAt, now).toMillis() / period.toMillis();
+        return Math.min(cap, health + points * periods);
+    }
+
+    /**
+     * Replaces the health of a party member read from the database with its effective health, re-levelling it
+     * according to the {@link LevelThresholds}. The timestamp is left as is, the member must not be written back.
+     *
+     * @param partyMember the party member
+     * @param now         the current time
+     * @return the party member
+     */
+    public PartyMember apply(PartyMember partyMember, Instant now) {
+        Long health = health(partyMember.health, partyMember.fighting, partyMember.healthUpdatedAt, now);
+        if (health != null && !health.equals(partyMember.health)) {
+            partyMember.health = health;
+            partyMember.level = LevelThresholds.nextLevel(partyMember.level, health);
+        }
+        return partyMember;
+    }
+
+    /**
+     * @param partyMembers the party members
+     * @param now          the current time
+     * @return the party members, with their effective health
+     */
+    public List<PartyMember> apply(List<PartyMember> partyMembers, Instant now) {
+        partyMembers.forEach(partyMember -> apply(partyMember, now));
+        return partyMembers;
+    }
+
+    /**
+     * Renders {@link #health(Long, Boolean, Instant, Instant)} as a native SQL expression over the columns of
+     * PartyMember, for the statements that write the health: they must start from the effective health and set
+     * healthUpdatedAt to the same time.
+     *
+     * @param now the expression of the current time in epoch seconds, e.g. a parameter
+     * @return the expression of the effective health
+     */
+    public String sql(String now) {
+        if (points <= 0) {
+            return "health";
+        }
+        return "CAST(CASE WHEN health > 0 AND health < " + cap + " AND fighting IS NOT TRUE AND healthUpdatedAt IS NOT NULL"
+                + " THEN least(" + cap + ", health + " + points + " * floor(greatest(0, CAST(" + now + " AS double precision)"
+                + " - extract(epoch FROM healthUpdatedAt)) * 1000 / " + period.toMillis() + "))"
+                + " ELSE health END AS bigint)";
+    }
+
+    /**
+     * @param now the current time
+     * @return the current time in epoch seconds, to be bound to the expression of {@link #sql(String)}
+     */
+    public static double epochSeconds(Instant now) {
+        return now.toEpochMilli() / 1000.0;
+    }
+}
@@ -0,0 +1,19 @@
+package org.acme.party.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A user whose leaderboard totals do not match the sum of the user's games.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LeaderboardDrift {
+    public String userId;
+    public long leaderboardWon;
+    public long leaderboardLost;
+    public long gamesWon;
+    public long gamesLost;
+}
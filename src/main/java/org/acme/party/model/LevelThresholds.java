@@ -0,0 +1,70 @@
+package org.acme.party.model;
+
+/**
+ * The level progression of the party members: a member goes up one level when its health reaches the minimum health
+ * of the next level. A health change never makes a member skip a level, however high the new health, it takes
+ * another change to reach the level after. Levels never go down, losing health does not cost a level already reached.
+ * <p>
+ * The same table is rendered as a SQL expression by {@link #sql(String)}, so that the statements that raise the
+ * health of many members at once re-level them in the same UPDATE, without loading them.
+ */
+public final class LevelThresholds {
+
+    /**
+     * Minimum health of each level, the first entry being level 1.
+     */
+    private static final long[] MIN_HEALTH = {0, 100, 150, 200, 250, 300, 350, 400, 450, 500};
+
+    public static final int MAX_LEVEL = MIN_HEALTH.length;
+
+    private LevelThresholds() {
+    }
+
+    /**
+     * @param level a level between 1 and {@link #MAX_LEVEL}
+     * @return the minimum health of the level
+     */
+    public static long minHealth(int level) {
+        return MIN_HEALTH[level - 1];
+    }
+
+    /**
+     * @param health the health of a party member
+     * @return the highest level whose minimum health is reached, 1 below the first threshold
+     */
+    public static int levelFor(long health) {
+        int level = 1;
+        while (level < MAX_LEVEL && health >= MIN_HEALTH[level]) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @param level  the current level of a party member, null if it was never set
+     * @param health the new health of the party member
+     * @return the level of the party member after the health change, at most one above the current level
+     */
+    public static int nextLevel(Integer level, long health) {
+        int current = level == null ? 1 : level;
+        return current < MAX_LEVEL && health >= MIN_HEALTH[current] ? current + 1 : current;
+    }
+
+    /**
+     * Renders {@link #nextLevel(Integer, long)} as an expression usable both in HQL and in native SQL, for the SET
+     * clause of an UPDATE of PartyMember. Since all the right-hand sides of a SET clause see the old values of the
+     * row, the expression must be given the new health, not the health column.
+     *
+     * @param health the expression of the new health, e.g. {@code health + 20}
+     * @return the expression of the new level
+     */
+    public static String sql(String health) {
+        // the minimum health of the next level, null at the last level, so that the comparison never holds
+        StringBuilder sql = new StringBuilder("(coalesce(level, 1) + case when (").append(health)
+                .append(") >= case coalesce(level, 1)");
+        for (int level = 1; level < MAX_LEVEL; level++) {
+            sql.append(" when ").append(level).append(" then ").append(MIN_HEALTH[level]);
+        }
+        return sql.append(" end then 1 else 0 end)").toString();
+    }
+}
@@ -0,0 +1,17 @@
+package org.acme.party.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The victories and losses of a user, over all of the user's games.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Standing {
+    public String userId;
+    public long won;
+    public long lost;
+}
@@ -0,0 +1,15 @@
+package org.acme.party.model;
+
+/**
+ * The encoding of the battle messages on a channel, see {@link BattleCodec}.
+ */
+public enum WireFormat {
+    /**
+     * Jackson JSON of the message classes, understood by every consumer.
+     */
+    JSON,
+    /**
+     * The compact, versioned binary encoding of {@link BattleCodec}.
+     */
+    BINARY
+}
@@ -0,0 +1,261 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.common.vertx.VertxContext;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.acme.party.entity.PartyMember;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of the fights: at most {@code party.fight.admission.max-in-flight} battles are in flight at
+ * once, and at most {@code party.fight.admission.max-in-flight-per-user} per user. A battle is in flight from the
+ * moment its fight is admitted until its result arrives on battles-end, or until the fight is rejected. The
+ * counters are updated with compare-and-set, never under a lock, and a fight over a cap is shed straight away, so
+ * the battle requests cannot pile up while the battle service is slow.
+ * <p>
+ * The result of a battle may be consumed by another replica, which cannot release it here. So every
+ * {@code party.fight.admission.reconcile-interval} the battles admitted by this replica are checked against the
+ * database: a battle that no party member is fighting any more, see {@link PartyMember#battleId}, has ended, or
+ * its fight never started, and is released. The battles admitted less than an interval ago are left out, their fight
+ * may not be committed yet. A battle still in flight after {@code party.fight.admission.timeout} is released anyway.
+ * <p>
+ * The battles in flight are exposed as the {@code battles.admission.in-flight} gauge, and the shed fights as the
+ * {@code battles.admission.shed} counter, tagged by the cap that was hit (global or user). The battles released
+ * by the check against the database are counted by the {@code battles.admission.reconciled} counter.
+ */
+@ApplicationScoped
+public class BattleAdmission {
+
+    // a per-user counter being removed, to be replaced by a fresh one
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.fight.admission.max-in-flight", defaultValue = "1000")
+    int maxInFlight;
+
+    @ConfigProperty(name = "party.fight.admission.max-in-flight-per-user", defaultValue = "10")
+    int maxInFlightPerUser;
+
+    @ConfigProperty(name = "party.fight.admission.timeout", defaultValue = "2m")
+    Duration timeout;
+
+    @ConfigProperty(name = "party.fight.admission.retry-after", defaultValue = "1s")
+    Duration retryAfter;
+
+    @ConfigProperty(name = "party.fight.admission.reconcile-interval", defaultValue = "5s")
+    Duration reconcileInterval;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> inFlightByUser = new ConcurrentHashMap<>();
+    private final Map<UUID, Admitted> admitted = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean reconciling = new AtomicBoolean();
+
+    private long timerId;
+    private long reconcileTimerId;
+    private Counter shedGlobal;
+    private Counter shedUser;
+    private Counter expired;
+    private Counter reconciled;
+
+    @PostConstruct
+    void init() {
+        Gauge.builder("battles.admission.in-flight", inFlight, AtomicInteger::get)
+                .description("Battles admitted and not ended yet")
+                .register(registry);
+        shedGlobal = registry.counter("battles.admission.shed", "cap", "global");
+        shedUser = registry.counter("battles.admission.shed", "cap", "user");
+        expired = registry.counter("battles.admission.expired");
+        reconciled = registry.counter("battles.admission.reconciled");
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        timerId = vertx.setPeriodic(Math.max(1, timeout.toMillis() / 4), id -> expire(System.nanoTime()));
+        reconcileTimerId = vertx.setPeriodic(reconcileInterval.toMillis(), id -> reconcile());
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        vertx.cancelTimer(timerId);
+        vertx.cancelTimer(reconcileTimerId);
+    }
+
+    /**
+     * Admits a battle if neither cap is reached.
+     *
+     * @param battleId the ID of the battle
+     * @param userId   the user starting the fight
+     * @return true if the battle is admitted, and must be released; false if the fight must be shed
+     */
+    public boolean tryAcquire(UUID battleId, String userId) {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                shedGlobal.increment();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        if (!tryAcquireUser(userId)) {
+            inFlight.decrementAndGet();
+            shedUser.increment();
+            return false;
+        }
+        admitted.put(battleId, new Admitted(userId, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Releases a battle, when its result arrives or its fight is rejected. Does nothing if the battle was not
+     * admitted by this replica, or was already released.
+     *
+     * @param battleId the ID of the battle
+     */
+    public void release(UUID battleId) {
+        if (battleId == null) {
+            return;
+        }
+        Admitted admission = admitted.remove(battleId);
+        if (admission != null) {
+            release(admission);
+        }
+    }
+
+    /**
+     * @return the delay after which a shed fight may be tried again, in seconds
+     */
+    public long retryAfterSeconds() {
+        return Math.max(1, retryAfter.toSeconds());
+    }
+
+    /**
+     * @return the number of battles in flight
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Releases the battles admitted before the timeout.
+     *
+     * @param now the current {@link System#nanoTime()}
+     */
+    void expire(long now) {
+        long timeoutNanos = timeout.toNanos();
+        admitted.forEach((battleId, admission) -> {
+            if (now - admission.admittedAt() >= timeoutNanos && admitted.remove(battleId, admission)) {
+                Log.warn("No result for battle " + battleId + " of user " + admission.userId()
+                        + " after " + timeout + ", releasing it");
+                expired.increment();
+                release(admission);
+            }
+        });
+    }
+
+    /**
+     * Checks the battles admitted before the last interval against the database, on a fresh duplicated context,
+     * unless the previous check is still going.
+     */
+    void reconcile() {
+        List<UUID> checked = admittedBefore(System.nanoTime() - reconcileInterval.toNanos());
+        if (checked.isEmpty() || !reconciling.compareAndSet(false, true)) {
+            return;
+        }
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withSession(() -> PartyMember.fightingBattles(checked))
+                .subscribe().with(
+                        fighting -> {
+                            reconciled(checked, fighting);
+                            reconciling.set(false);
+                        },
+                        throwable -> {
+                            Log.error("Error checking the battles in flight", throwable);
+                            reconciling.set(false);
+                        }));
+    }
+
+    /**
+     * @param before a {@link System#nanoTime()}
+     * @return the battles admitted before the given time and not released yet
+     */
+    List<UUID> admittedBefore(long before) {
+        List<UUID> battleIds = new ArrayList<>();
+        admitted.forEach((battleId, admission) -> {
+            if (admission.admittedAt() - before < 0) {
+                battleIds.add(battleId);
+            }
+        });
+        return battleIds;
+    }
+
+    /**
+     * Releases the checked battles that no party member is fighting any more.
+     *
+     * @param checked  the battles checked against the database
+     * @param fighting the ones still being fought
+     */
+    void reconciled(Collection<UUID> checked, Set<UUID> fighting) {
+        for (UUID battleId : checked) {
+            Admitted admission = fighting.contains(battleId) ? null : admitted.remove(battleId);
+            if (admission != null) {
+                reconciled.increment();
+                release(admission);
+            }
+        }
+    }
+
+    private boolean tryAcquireUser(String userId) {
+        while (true) {
+            AtomicInteger counter = inFlightByUser.computeIfAbsent(userId, k -> new AtomicInteger());
+            int current = counter.get();
+            if (current == RETIRED) {
+                inFlightByUser.remove(userId, counter);
+                continue;
+            }
+            if (current >= maxInFlightPerUser) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(Admitted admission) {
+        inFlight.decrementAndGet();
+        AtomicInteger counter = inFlightByUser.get(admission.userId());
+        if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, RETIRED)) {
+            // no battle of the user in flight: the counter is dropped, unless a fight was admitted meanwhile
+            inFlightByUser.remove(admission.userId(), counter);
+        }
+    }
+
+    private record Admitted(String userId, long admittedAt) {
+    }
+}
@@ -0,0 +1,145 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.acme.party.entity.ProcessedBattle;
+import org.acme.party.model.BattleEnd;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Makes the consumption of the battle results idempotent on {@link BattleEnd#id}. The IDs of the results applied
+ * recently are kept in a bounded LRU of {@code party.battles-end.dedup.cache-size} entries, which catches the
+ * redeliveries that follow a rebalance without a database round trip. Every other result is claimed in the
+ * {@link ProcessedBattle} table, in the same transaction that applies it, so a redelivery is skipped even when its
+ * ID has been evicted or the instance restarted. The claimed IDs are kept for
+ * {@code party.battles-end.dedup.retention}.
+ * <p>
+ * The results are counted by the {@code battles.end.records} counter, tagged by outcome (processed or duplicate).
+ */
+@ApplicationScoped
+public class BattleDedup {
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.battles-end.dedup.cache-size", defaultValue = "100000")
+    int cacheSize;
+
+    @ConfigProperty(name = "party.battles-end.dedup.retention", defaultValue = "7d")
+    Duration retention;
+
+    @ConfigProperty(name = "party.battles-end.dedup.cleanup-interval", defaultValue = "1h")
+    Duration cleanupInterval;
+
+    private Map<UUID, Boolean> recent; // guarded by itself
+    private long timerId;
+    private Counter processed;
+    private Counter duplicates;
+
+    void onStart(@Observes StartupEvent event) {
+        timerId = vertx.setPeriodic(cleanupInterval.toMillis(), id -> cleanup());
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        vertx.cancelTimer(timerId);
+    }
+
+    @PostConstruct
+    void init() {
+        recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        processed = registry.counter("battles.end.records", "outcome", "processed");
+        duplicates = registry.counter("battles.end.records", "outcome", "duplicate");
+    }
+
+    /**
+     * The fast check, done before any transaction.
+     *
+     * @param battleEnd a battle result
+     * @return true if the result was applied recently by this instance
+     */
+    public boolean isRecent(BattleEnd battleEnd) {
+        if (battleEnd.id == null) {
+            return false;
+        }
+        synchronized (recent) {
+            return recent.get(battleEnd.id) != null;
+        }
+    }
+
+    /**
+     * Claims the battle results in the current transaction. Results without an ID cannot be deduplicated and are
+     * always returned.
+     *
+     * @param battleEnds the battle results, without duplicate IDs
+     * @return a {@link Uni} containing the results not applied yet, in order
+     */
+    public Uni<List<BattleEnd>> claim(List<BattleEnd> battleEnds) {
+        List<UUID> ids = new ArrayList<>(battleEnds.size());
+        for (BattleEnd battleEnd : battleEnds) {
+            if (battleEnd.id != null) {
+                ids.add(battleEnd.id);
+            }
+        }
+        return ProcessedBattle.claim(ids)
+                .map(claimed -> battleEnds.stream()
+                        .filter(battleEnd -> battleEnd.id == null || claimed.contains(battleEnd.id))
+                        .toList());
+    }
+
+    /**
+     * Remembers the results once their transaction has committed.
+     *
+     * @param battleEnds the applied battle results
+     */
+    public void applied(Collection<BattleEnd> battleEnds) {
+        synchronized (recent) {
+            for (BattleEnd battleEnd : battleEnds) {
+                if (battleEnd.id != null) {
+                    recent.put(battleEnd.id, Boolean.TRUE);
+                }
+            }
+        }
+        processed.increment(battleEnds.size());
+    }
+
+    /**
+     * Counts a result that was skipped because it had already been applied.
+     *
+     * @param battleEnd the duplicate battle result
+     */
+    public void skipped(BattleEnd battleEnd) {
+        Log.info("Skipping battle " + battleEnd.id + ", already applied");
+        duplicates.increment();
+    }
+
+    private void cleanup() {
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withTransaction(() -> ProcessedBattle.deleteProcessedBefore(Instant.now().minus(retention)))
+                .subscribe().with(
+                        deleted -> Log.debug("Deleted " + deleted + " processed battle IDs"),
+                        throwable -> Log.error("Error deleting the processed battle IDs", throwable)));
+    }
+}
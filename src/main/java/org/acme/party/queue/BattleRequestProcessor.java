@@ -1,19 +1,34 @@
 package org.acme.party.queue;
 
-import io.quarkus.hibernate.reactive.panache.common.WithTransaction;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
 import io.quarkus.logging.Log;
 import io.smallrye.mutiny.Uni;
-import io.vertx.core.json.JsonObject;
+import io.smallrye.reactive.messaging.TracingMetadata;
+import io.smallrye.reactive.messaging.kafka.KafkaRecord;
+import io.smallrye.reactive.messaging.kafka.KafkaRecordBatch;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import org.acme.party.entity.Game;
 import org.acme.party.entity.PartyMember;
+import org.acme.party.model.BattleCodec;
 import org.acme.party.model.BattleEnd;
 import org.acme.party.model.BattleUpdate;
+import org.acme.party.model.Standing;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.eclipse.microprofile.reactive.messaging.Message;
-import org.eclipse.microprofile.reactive.messaging.Outgoing;
+import org.eclipse.microprofile.reactive.messaging.Metadata;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 import java.util.random.RandomGenerator;
 
 import static org.acme.party.model.Quote.*;
@@ -21,190 +36,288 @@ import static org.acme.party.model.Quote.*;
 @ApplicationScoped
 public class BattleRequestProcessor {
 
+    @Inject
+    BattleSettlement battleSettlement;
+
+    @Inject
+    KeyedLanes lanes;
+
+    @Inject
+    OptimisticRetry optimisticRetry;
+
+    @Inject
+    BattleUpdateHub battleUpdateHub;
+
+    @Inject
+    BattleDedup battleDedup;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    BattleTracing battleTracing;
+
+    @Inject
+    Leaderboard leaderboard;
+
+    @Inject
+    BattleAdmission battleAdmission;
+
+    @Inject
+    BattleRetry battleRetry;
+
+    @Inject
+    @Channel("battles-update")
+    Emitter<BattleUpdate> battleUpdateEmitter;
+
     /**
-     * Processes a battle request message. It updates the state of a {@link PartyMember} and a {@link Game} entity based
-     * on the battle's outcome, marking the party member as no longer fighting and updating the game statistics.
-     * The method also logs the battle's processing status and handles errors accordingly.
+     * Processes a batch of battle end records. The batch is split by user onto the {@link KeyedLanes}, and the state
+     * of the {@link PartyMember} and {@link Game} entities is updated for each lane's share of the batch in a single
+     * transaction, marking the party members as no longer fighting and updating the game statistics. Lanes run in
+     * parallel, while the results of a given user are always settled in order on the same lane. Once the lanes are
+     * done a {@link BattleUpdate} is emitted for every record, in the order the records were received, and each
+     * record is acknowledged when its update is sent. A lane's transaction is run again if it conflicts with a
+     * concurrent update of the same party members or games. The updates are also pushed to the users connected
+     * to this instance through the {@link BattleUpdateHub}, and the new totals of the users applied to the
+     * {@link Leaderboard} once their lane has committed. The battles are released from the {@link BattleAdmission}
+     * as soon as their result is decoded.
+     * <p>
+     * Records are deduplicated on the battle ID by the {@link BattleDedup}: a result that was already applied is
+     * acknowledged and skipped, without touching the entities nor emitting an update.
+     * <p>
+     * Each record is decoded from the compact {@link BattleCodec} encoding or from JSON, whichever it is in, so the
+     * producers can switch format independently.
+     * <p>
+     * The correlation ID and the trace context of the fight are read from the record headers, see
+     * {@link BattleTracing}: each lane's settlement is traced with a span per stage, linked to the fights it settles,
+     * the emission of each update is traced as part of its fight, and the update carries the correlation ID.
+     * <p>
+     * If a lane cannot settle its share of the batch, its battle results are settled again one at a time, so that
+     * a single bad result does not fail the others sharing its lane. Records that cannot be decoded, whose party
+     * member is null, or that still cannot be settled on their own are parked by the {@link BattleRetry}, to be
+     * tried again later, and acknowledged, so that they never hold up the partition. They are only nacked if they
+     * cannot be parked either. A parked result applied after a newer one of the same member only counts for its
+     * game, see {@link BattleSettlement#settle(List)}.
+     * <p>
+     * The batch size and the linger time are configured with {@code party.battles-end.batch-size} and
+     * {@code party.battles-end.linger-ms}.
      *
-     * @param message the incoming message containing the battle request information. It includes details such as
-     *                the party member involved, the associated game ID, and whether the battle was a victory.
-     * @return a {@link Uni} that resolves to a {@link CompletionStage<Void>} after processing the battle request
-     * and acknowledging the message. The operation fails if any required entity is not found or if
-     * the `partyMember` field in the battle request is null.
+     * @param batch the incoming battle end records. Each record includes details such as the party member involved,
+     *              the associated game ID, and whether the battle was a victory.
+     * @return a {@link Uni} completing once the batch has been processed and its failed records parked
      */
-//    @Incoming("battles-end")
-//    @Outgoing("battles-update")
-//    @WithTransaction
-//    public Uni<CompletionStage<Void>> processBattleRequest(Message<JsonObject> message) {
-//
-//
-//        BattleEnd battleEnd = message.getPayload().mapTo(BattleEnd.class);
-//
-//        if (battleEnd.partyMember != null) {
-//
-//            Long partyMemberId = battleEnd.partyMember.id;
-//            Long gameId = battleEnd.gameId != null ? battleEnd.gameId : null;
-//
-//            return PartyMember.findById(partyMemberId)
-//                    .onItem().ifNotNull().invoke(partyMember -> {
-//                        PartyMember p = (PartyMember) partyMember;
-//                        p.fighting = false;
-//                        p.villain = null;
-//                        p.health = battleEnd.partyMember.health;
-//
-//                        partyMember.persist();
-//                    })
-//                    //
-//                    .chain(() -> {
-//                        if (gameId != null) {
-//                            return Game.findById(gameId)
-//                                    .onItem().ifNotNull().invoke(game -> {
-//                                        Game g = (Game) game;
-//                                        if (battleEnd.isVictory) {
-//                                            g.won++;
-//                                        } else {
-//                                            g.lost++;
-//                                        }
-//                                        g.persist();
-//                                    })
-//                                    .onItem().ifNull().failWith(new IllegalStateException("Game with ID " + gameId + " not found"));
-//                        } else {
-//                            return Uni.createFrom().nullItem();
-//                        }
-//                    })
-//                    .onItem().invoke(() -> {
-//                                Log.info("Processing battle end: " + battleEnd.partyMember.heroName + " vs " + battleEnd.partyMember.villain);
-//                            }
-//                    )
-//                    .onFailure().invoke(throwable -> Log.error("Error processing battle request", throwable))
-//                    .replaceWith(message.ack())
-//                    .onFailure().invoke(throwable -> Log.error("Party Member or Game not found", throwable));
-//
-//        } else {
-//            Log.error("Party is null in battle request: " + battleEnd);
-//            return Uni.createFrom().failure(new IllegalArgumentException("Party Member cannot be null"));
-//        }
-//    }
     @Incoming("battles-end")
-    @Outgoing("battles-update")
-    @WithTransaction
-    public Uni<Message<BattleUpdate>> processBattleRequest(Message<JsonObject> message) {
-
-        // Converte il payload in un oggetto `BattleEnd`
-        BattleEnd battleEnd = message.getPayload().mapTo(BattleEnd.class);
-
-        if (battleEnd.partyMember != null) {
-            Long partyMemberId = battleEnd.partyMember.id;
-            Long gameId = battleEnd.gameId != null ? battleEnd.gameId : null;
-
-            return Uni.createFrom().voidItem()
-                    .flatMap(voidItem -> {
-                        if (!battleEnd.isVictory) {
-                            Log.info("Applying health reduction for all party members...");
-                            return PartyMember.update("health = health - 10 WHERE health > 20 and userId = ?1 AND id != ?2",
-                                            battleEnd.partyMember.userId, partyMemberId)
-                                    .onItem().invoke(updated -> {
-                                        if (updated == 0) {
-                                            Log.warn("No party members were updated.");
-                                        } else {
-                                            Log.info("Updated health for " + updated + " party members.");
-                                        }
-                                    })
-                                    .onFailure().invoke(throwable -> {
-                                        Log.error("Error updating party members' health.", throwable);
-                                    });
+    public Uni<Void> processBattleRequests(KafkaRecordBatch<String, byte[]> batch) {
+        List<KafkaRecord<String, byte[]>> records = new ArrayList<>();
+        List<BattleEnd> battleEnds = new ArrayList<>();
+        Map<BattleEnd, BattleTracing.Trace> traces = new IdentityHashMap<>();
+        Set<UUID> ids = new HashSet<>();
+        Map<KafkaRecord<String, byte[]>, Throwable> failures = new LinkedHashMap<>();
+
+        for (KafkaRecord<String, byte[]> record : batch) {
+            // Converte il payload in un oggetto `BattleEnd`
+            BattleEnd battleEnd;
+            try {
+                battleEnd = decode(record.getPayload());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.error("Cannot decode battle end record with key " + record.getKey(), e);
+                failures.put(record, e);
+                continue;
+            }
+            // redelivered, or delivered twice in the same batch: acked without touching the entities
+            if (battleDedup.isRecent(battleEnd) || (battleEnd.id != null && !ids.add(battleEnd.id))) {
+                battleDedup.skipped(battleEnd);
+                record.ack();
+                continue;
+            }
+            records.add(record);
+            battleEnds.add(battleEnd);
+            traces.put(battleEnd, battleTracing.trace(record.getHeaders(), battleEnd));
+        }
+
+        if (battleEnds.isEmpty()) {
+            return battleRetry.park(failures);
+        }
+
+        // one sub-batch per lane, keyed by user, so results of the same user are never settled concurrently
+        Map<Integer, List<BattleEnd>> battleEndsByLane = new LinkedHashMap<>();
+        for (BattleEnd battleEnd : battleEnds) {
+            battleEndsByLane.computeIfAbsent(lanes.laneOf(battleEnd.partyMember.userId), k -> new ArrayList<>())
+                    .add(battleEnd);
+        }
+
+        Map<BattleEnd, Throwable> failed = Collections.synchronizedMap(new IdentityHashMap<>());
+        Set<BattleEnd> settled = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        List<Uni<Void>> settlements = new ArrayList<>();
+        battleEndsByLane.forEach((lane, laneBattleEnds) -> settlements.add(
+                lanes.submit(lane, () -> settleAndApply(laneBattleEnds, traces, settled)
+                        .onFailure().recoverWithUni(throwable -> {
+                            if (laneBattleEnds.size() > 1) {
+                                Log.warn("Error settling " + laneBattleEnds.size() + " battles together, settling them one by one", throwable);
+                                return settleOneByOne(laneBattleEnds, traces, settled, failed);
+                            }
+                            Log.error("Error processing battle request", throwable);
+                            failed.put(laneBattleEnds.get(0), throwable);
+                            return Uni.createFrom().voidItem();
+                        }))));
+
+        return Uni.join().all(settlements).andFailFast()
+                .onItem().invoke(() -> {
+                    for (int i = 0; i < battleEnds.size(); i++) {
+                        BattleEnd battleEnd = battleEnds.get(i);
+                        KafkaRecord<String, byte[]> record = records.get(i);
+                        Throwable failure = failed.get(battleEnd);
+                        BattleTracing.Trace trace = traces.get(battleEnd);
+                        if (failure != null) {
+                            battleTracing.recordLatency(trace, "failed");
+                            failures.put(record, failure);
+                        } else if (!settled.contains(battleEnd)) {
+                            // already claimed by an earlier delivery
+                            battleDedup.skipped(battleEnd);
+                            record.ack();
+                        } else {
+                            emit(battleEnd, trace, record::ack);
                         }
+                    }
+                })
+                .chain(() -> battleRetry.park(failures));
+    }
+
+    /**
+     * Applies a parked battle end record on its own, on the lane of its user, like
+     * {@link #processBattleRequests(KafkaRecordBatch)} does for a batch.
+     *
+     * @param payload the payload of the record
+     * @param headers the headers of the record
+     * @return a {@link Uni} completing once the record is applied, or skipped if already applied, failing if the
+     * record still cannot be applied
+     */
+    Uni<Void> retry(byte[] payload, Map<String, String> headers) {
+        BattleEnd battleEnd;
+        try {
+            battleEnd = decode(payload);
+        } catch (IOException | IllegalArgumentException e) {
+            return Uni.createFrom().failure(e);
+        }
+        if (battleDedup.isRecent(battleEnd)) {
+            battleDedup.skipped(battleEnd);
+            return Uni.createFrom().voidItem();
+        }
+        RecordHeaders recordHeaders = new RecordHeaders();
+        headers.forEach((key, value) -> recordHeaders.add(key, value.getBytes(StandardCharsets.UTF_8)));
+        BattleTracing.Trace trace = battleTracing.trace(recordHeaders, battleEnd);
+
+        return lanes.submit(lanes.laneOf(battleEnd.partyMember.userId), () -> settle(List.of(battleEnd), Map.of(battleEnd, trace)))
+                .invoke(result -> {
+                    battleDedup.applied(result.battleEnds());
+                    leaderboard.apply(result.standings());
+                    if (result.battleEnds().isEmpty()) {
+                        battleDedup.skipped(battleEnd);
+                    } else {
+                        emit(battleEnd, trace, () -> CompletableFuture.completedFuture(null));
+                    }
+                })
+                .replaceWithVoid();
+    }
+
+    /**
+     * Settles battle results together, then records them as applied, for the records to be acknowledged, and
+     * applies the new totals to the {@link Leaderboard}.
+     */
+    private Uni<Void> settleAndApply(List<BattleEnd> battleEnds, Map<BattleEnd, BattleTracing.Trace> traces,
+                                     Set<BattleEnd> settled) {
+        return settle(battleEnds, traces)
+                .onItem().invoke(result -> {
+                    battleDedup.applied(result.battleEnds());
+                    settled.addAll(result.battleEnds());
+                    leaderboard.apply(result.standings());
+                })
+                .replaceWithVoid();
+    }
+
+    /**
+     * Settles the battle results of a lane that could not be settled together one at a time, in order, so that
+     * only the ones that still fail are parked and the others, of the same user or not, are not held up.
+     */
+    private Uni<Void> settleOneByOne(List<BattleEnd> battleEnds, Map<BattleEnd, BattleTracing.Trace> traces,
+                                     Set<BattleEnd> settled, Map<BattleEnd, Throwable> failed) {
+        Uni<Void> settlements = Uni.createFrom().voidItem();
+        for (BattleEnd battleEnd : battleEnds) {
+            settlements = settlements.chain(() -> settleAndApply(List.of(battleEnd), traces, settled)
+                    .onFailure().recoverWithUni(throwable -> {
+                        Log.error("Error processing battle request " + battleEnd.id, throwable);
+                        failed.put(battleEnd, throwable);
                         return Uni.createFrom().voidItem();
-                    })
-                    .flatMap(voidItem -> PartyMember.findById(partyMemberId)
-
-                            //return PartyMember.findById(partyMemberId)
-                            .onItem().ifNotNull().transformToUni(partyMember -> {
-                                PartyMember p = (PartyMember) partyMember;
-                                p.fighting = false;
-                                p.villain = null;
-                                p.health = battleEnd.partyMember.health;
-
-                                updateMemberLevel(p);
-
-                                return p.persist()
-                                        .replaceWith(gameId != null
-                                                ? Game.findById(gameId) // Trova e aggiorna il Game (se necessario)
-                                                .onItem().ifNotNull().invoke(game -> {
-                                                    Game g = (Game) game;
-                                                    if (battleEnd.isVictory) {
-                                                        g.won++;
-                                                    } else {
-                                                        g.lost++;
-                                                    }
-                                                    g.persist();
-                                                })
-                                                .onItem().ifNull().failWith(() -> new IllegalStateException("Game with ID " + gameId + " not found"))
-                                                : Uni.createFrom().nullItem());
-                            }))
-                    .onItem().transform(ignored -> {
-                        BattleUpdate update = new BattleUpdate();
-                        update.setUser(battleEnd.partyMember.userId);
-                        update.setMessage((battleEnd.isVictory ? "[WON] " : "[LOST]") + " " + battleEnd.partyMember.heroName + ": " + getQuote(battleEnd.partyMember.heroName));
-                        Log.info("Processing battle end: " + battleEnd.partyMember.heroName + " vs " + battleEnd.partyMember.villain);
-                        return Message.of(update, () -> message.ack());
-                    })
-                    .onFailure().invoke(throwable -> {
-                        Log.error("Error processing battle request", throwable);
-                    });
-        } else {
-            Log.error("Party Member is null in battle request: " + battleEnd);
-            return Uni.createFrom().failure(new IllegalArgumentException("Party Member cannot be null"));
+                    }));
         }
+        return settlements;
     }
 
-    private void updateMemberLevel(PartyMember p) {
-        switch (p.level) {
-            case 1:
-                if (p.health >= 100) {
-                    p.level = 2;
-                }
-                break;
-            case 2:
-                if (p.health >= 150) {
-                    p.level = 3;
-                }
-            case 3:
-                if (p.health >= 200) {
-                    p.level = 4;
-                }
-            case 4:
-                if (p.health >= 250) {
-                    p.level = 5;
-                }
-            case 5:
-                if (p.health >= 300) {
-                    p.level = 6;
-                }
-            case 6:
-                if (p.health >= 350) {
-                    p.level = 7;
-                }
-            case 7:
-                if (p.health >= 400) {
-                    p.level = 8;
-                }
-            case 8:
-                if (p.health >= 450) {
-                    p.level = 9;
-                }
-            case 9:
-                if (p.health >= 500) {
-                    p.level = 10;
-                }
+    /**
+     * Settles a lane's share of the batch in a span, the child of the fight when the lane settles a single battle,
+     * linked to the fights otherwise.
+     *
+     * @return a {@link Uni} containing the battle results settled, the others having been applied already, and the
+     * new leaderboard totals
+     */
+    private Uni<Settled> settle(List<BattleEnd> battleEnds, Map<BattleEnd, BattleTracing.Trace> traces) {
+        List<Context> fights = battleEnds.stream().map(battleEnd -> traces.get(battleEnd).context()).toList();
+        Context parent = fights.size() == 1 ? fights.get(0) : Context.root();
+        return battleTracing.span("battles-end settle", parent, fights, span ->
+                optimisticRetry.withTransaction("battles-end", () -> battleDedup.claim(battleEnds)
+                        .chain(claimed -> claimed.isEmpty()
+                                ? Uni.createFrom().item(new Settled(claimed, List.of()))
+                                : battleSettlement.settle(claimed, span).map(standings -> new Settled(claimed, standings)))));
+    }
 
-                break;
-            default:
-                break;
+    /**
+     * Publishes the update of a settled battle, and acknowledges the record once the update is sent. The emission
+     * is traced as part of the fight, and the latency of the battle recorded when the update is sent.
+     */
+    private void emit(BattleEnd battleEnd, BattleTracing.Trace trace, Supplier<CompletionStage<Void>> ack) {
+        Span span = battleTracing.start("battles-update emit", trace.context());
+        BattleUpdate update = toBattleUpdate(battleEnd);
+        update.setCorrelationId(trace.correlationId());
+        battleUpdateHub.publish(update);
+        battleUpdateEmitter.send(Message.of(update,
+                Metadata.of(TracingMetadata.withCurrent(trace.context().with(span))),
+                () -> {
+                    battleTracing.end(span, null);
+                    battleTracing.recordLatency(trace, Boolean.TRUE.equals(battleEnd.isVictory) ? "victory" : "defeat");
+                    return ack.get();
+                },
+                throwable -> {
+                    battleTracing.end(span, throwable);
+                    return CompletableFuture.completedFuture(null);
+                }));
+    }
+
+    /**
+     * Decodes a battle end record, and releases its battle from the {@link BattleAdmission}: the battle is over,
+     * its fight no longer counts against the admission caps.
+     *
+     * @throws IllegalArgumentException if the payload is not a battle end, or its party member is null
+     */
+    private BattleEnd decode(byte[] payload) throws IOException {
+        BattleEnd battleEnd = BattleCodec.isBinary(payload)
+                ? BattleCodec.decodeEnd(payload)
+                : objectMapper.readValue(payload, BattleEnd.class);
+        battleAdmission.release(battleEnd.id);
+        if (battleEnd.partyMember == null) {
+            throw new IllegalArgumentException("Party Member cannot be null in battle " + battleEnd.id);
         }
+        return battleEnd;
+    }
+
+    private BattleUpdate toBattleUpdate(BattleEnd battleEnd) {
+        BattleUpdate update = new BattleUpdate();
+        update.setUser(battleEnd.partyMember.userId);
+        update.setMessage((battleEnd.isVictory ? "[WON] " : "[LOST]") + " " + battleEnd.partyMember.heroName + ": " + getQuote(battleEnd.partyMember.heroName));
+        Log.info("Processing battle end: " + battleEnd.partyMember.heroName + " vs " + battleEnd.partyMember.villain);
+        return update;
     }
 
-    private String getQuote(String partyMember) {
+    public static String getQuote(String partyMember) {
         String[] quotes = {};
         switch (partyMember) {
             case "Astarion":
@@ -235,4 +348,7 @@ public class BattleRequestProcessor {
         int index = RandomGenerator.getDefault().nextInt(quotes.length);
         return quotes[index];
     }
-}
\ No newline at end of file
+
+    private record Settled(List<BattleEnd> battleEnds, List<Standing> standings) {
+    }
+}
@@ -0,0 +1,239 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.reactive.messaging.MutinyEmitter;
+import io.smallrye.reactive.messaging.kafka.KafkaRecord;
+import io.smallrye.reactive.messaging.kafka.api.OutgoingKafkaRecordMetadata;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.acme.party.entity.ParkedBattle;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Retries the battles-end records that could not be applied, without holding up their partition. A failed record
+ * is parked in the {@link ParkedBattle} table and acknowledged; every {@code party.battles-end.retry.poll-interval}
+ * the parked records that are due are applied again one by one, each on the lane of its user, with an exponential
+ * back-off from {@code party.battles-end.retry.initial-backoff} up to {@code party.battles-end.retry.max-backoff}.
+ * After {@code party.battles-end.retry.max-attempts} attempts a record is dead: it is published on the
+ * battles-end-dlq channel, with the cause of the last failure in the {@value #REASON} and {@value #CAUSE} headers,
+ * and kept in the table until it is replayed. A record applied out of order, after a newer result of the same
+ * party member, only counts for its game and leaves the member as it is, see {@link BattleSettlement#settle(List)}.
+ * <p>
+ * The parked records are counted by the {@code battles.end.parked} counter, the attempts by the
+ * {@code battles.end.retries} counter, tagged by outcome (applied or failed), and the dead records by the
+ * {@code battles.end.dead-lettered} counter.
+ */
+@ApplicationScoped
+public class BattleRetry {
+
+    static final String REASON = "dead-letter-reason";
+    static final String CAUSE = "dead-letter-cause";
+    static final String ATTEMPTS = "dead-letter-attempts";
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    OptimisticRetry optimisticRetry;
+
+    @Inject
+    BattleRequestProcessor processor;
+
+    @Inject
+    @Channel("battles-end-dlq")
+    MutinyEmitter<byte[]> deadLetterEmitter;
+
+    @ConfigProperty(name = "party.battles-end.retry.max-attempts", defaultValue = "5")
+    int maxAttempts;
+
+    @ConfigProperty(name = "party.battles-end.retry.initial-backoff", defaultValue = "1s")
+    Duration initialBackoff;
+
+    @ConfigProperty(name = "party.battles-end.retry.max-backoff", defaultValue = "5m")
+    Duration maxBackoff;
+
+    @ConfigProperty(name = "party.battles-end.retry.poll-interval", defaultValue = "1s")
+    Duration pollInterval;
+
+    @ConfigProperty(name = "party.battles-end.retry.batch-size", defaultValue = "100")
+    int batchSize;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private long timerId;
+    private Counter parked;
+    private Counter applied;
+    private Counter failed;
+    private Counter deadLettered;
+
+    @PostConstruct
+    void init() {
+        parked = registry.counter("battles.end.parked");
+        applied = registry.counter("battles.end.retries", "outcome", "applied");
+        failed = registry.counter("battles.end.retries", "outcome", "failed");
+        deadLettered = registry.counter("battles.end.dead-lettered");
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        timerId = vertx.setPeriodic(pollInterval.toMillis(), id -> retryDue());
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        vertx.cancelTimer(timerId);
+    }
+
+    /**
+     * Parks the failed records, then acknowledges them. The records are nacked if they cannot be parked.
+     *
+     * @param failures the failed records, with the cause of their failure
+     * @return a {@link Uni} completing once the records are acknowledged or nacked
+     */
+    public Uni<Void> park(Map<KafkaRecord<String, byte[]>, Throwable> failures) {
+        if (failures.isEmpty()) {
+            return Uni.createFrom().voidItem();
+        }
+        Instant nextAttemptAt = Instant.now().plus(backoff(1));
+        List<ParkedBattle> battles = new ArrayList<>(failures.size());
+        failures.forEach((record, failure) -> battles.add(ParkedBattle.of(record.getKey(), record.getPayload(),
+                toMap(record.getHeaders()), failure, nextAttemptAt)));
+
+        return optimisticRetry.withTransaction("battles-end-park", () -> ParkedBattle.persist(battles))
+                .onItem().invoke(() -> {
+                    Log.warn("Parked " + battles.size() + " battle end records, next attempt at " + nextAttemptAt);
+                    parked.increment(battles.size());
+                    failures.keySet().forEach(KafkaRecord::ack);
+                })
+                .onFailure().invoke(throwable -> {
+                    Log.error("Cannot park " + failures.size() + " battle end records", throwable);
+                    failures.keySet().forEach(record -> record.nack(throwable));
+                })
+                .onFailure().recoverWithNull()
+                .replaceWithVoid();
+    }
+
+    /**
+     * Schedules dead records to be tried again now, with all their attempts.
+     *
+     * @param id the ID of the dead record, or null to replay all of them
+     * @return a {@link Uni} containing the number of records replayed
+     */
+    public Uni<Integer> replay(Long id) {
+        return Panache.withTransaction(() -> ParkedBattle.replay(id))
+                .onItem().invoke(replayed -> Log.info("Replaying " + replayed + " dead battle end records"));
+    }
+
+    /**
+     * Runs the retries on a fresh duplicated context, unless the previous run is still going.
+     */
+    void retryDue() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withSession(() -> ParkedBattle.due(batchSize))
+                .onItem().transformToMulti(due -> Multi.createFrom().iterable(due))
+                .onItem().transformToUniAndConcatenate(this::retry)
+                .collect().last()
+                .subscribe().with(
+                        last -> running.set(false),
+                        throwable -> {
+                            Log.error("Error retrying the parked battle end records", throwable);
+                            running.set(false);
+                        }));
+    }
+
+    /**
+     * Makes the next attempt of a parked record, unless another replica got to it first. The record is deleted
+     * once applied; otherwise the failure is recorded, and the record dead-lettered after the last attempt.
+     */
+    Uni<Void> retry(ParkedBattle battle) {
+        // the lanes complete on their own context, the sessions below must be used back on this one
+        Context context = Vertx.currentContext();
+        int attempt = battle.attempts + 1;
+        return Panache.withTransaction(() -> ParkedBattle.claimAttempt(battle.id, battle.attempts, Instant.now().plus(backoff(attempt))))
+                .chain(claimed -> !claimed ? Uni.createFrom().voidItem() : processor.retry(battle.payload, battle.headersAsMap())
+                        .emitOn(command -> context.runOnContext(ignored -> command.run()))
+                        .chain(() -> Panache.withTransaction(() -> ParkedBattle.deleteById(battle.id)))
+                        .onItem().invoke(() -> {
+                            Log.info("Parked battle end record " + battle.id + " applied at attempt " + attempt);
+                            applied.increment();
+                        })
+                        .replaceWithVoid()
+                        .onFailure().recoverWithUni(failure -> attemptFailed(battle, attempt, failure)));
+    }
+
+    private Uni<Void> attemptFailed(ParkedBattle battle, int attempt, Throwable failure) {
+        failed.increment();
+        boolean dead = attempt >= maxAttempts;
+        Log.warn("Attempt " + attempt + " of parked battle end record " + battle.id + " failed"
+                + (dead ? ", dead-lettering it" : ""), failure);
+        return Panache.withTransaction(() -> ParkedBattle.attemptFailed(battle.id, failure, dead))
+                .chain(() -> dead ? deadLetter(battle, attempt, failure) : Uni.createFrom().voidItem());
+    }
+
+    private Uni<Void> deadLetter(ParkedBattle battle, int attempts, Throwable failure) {
+        RecordHeaders headers = new RecordHeaders();
+        battle.headersAsMap().forEach((key, value) -> headers.add(key, value.getBytes(StandardCharsets.UTF_8)));
+        headers.add(REASON, String.valueOf(failure.getMessage()).getBytes(StandardCharsets.UTF_8));
+        headers.add(CAUSE, failure.getClass().getName().getBytes(StandardCharsets.UTF_8));
+        headers.add(ATTEMPTS, Integer.toString(attempts).getBytes(StandardCharsets.UTF_8));
+
+        return deadLetterEmitter.sendMessage(Message.of(battle.payload).addMetadata(OutgoingKafkaRecordMetadata.<String>builder()
+                        .withKey(battle.recordKey)
+                        .withHeaders(headers)
+                        .build()))
+                .onItem().invoke(() -> deadLettered.increment())
+                .onFailure().invoke(throwable -> Log.error("Cannot publish dead battle end record " + battle.id
+                        + ", it stays in the table", throwable))
+                .onFailure().recoverWithNull();
+    }
+
+    /**
+     * @param attempt the number of attempts made
+     * @return the delay before the next attempt
+     */
+    Duration backoff(int attempt) {
+        long millis = initialBackoff.toMillis() << Math.min(Math.max(attempt - 1, 0), 30);
+        return millis <= 0 || millis > maxBackoff.toMillis() ? maxBackoff : Duration.ofMillis(millis);
+    }
+
+    private static Map<String, String> toMap(Headers headers) {
+        Map<String, String> map = new HashMap<>();
+        if (headers != null) {
+            for (Header header : headers) {
+                if (header.value() != null) {
+                    map.put(header.key(), new String(header.value(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,340 @@
+package org.acme.party.queue;
+
+import io.opentelemetry.context.Context;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Uni;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.acme.party.entity.Game;
+import org.acme.party.entity.LeaderboardEntry;
+import org.acme.party.entity.PartyMember;
+import org.acme.party.model.BattleEnd;
+import org.acme.party.model.HealthRegen;
+import org.acme.party.model.LevelThresholds;
+import org.acme.party.model.Standing;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Applies a batch of battle results to the database. By default the whole batch is settled with a single statement,
+ * one round trip: the health penalties, the update of the members that fought, the atomic game counter increments and
+ * the leaderboard totals are the data-modifying steps of one CTE, see {@link #settleInOneStatement(List)}. The update
+ * is set-based, the members are never read, and their version is bumped so that a concurrent read-modify-write of the
+ * same member conflicts instead of overwriting the result.
+ * <p>
+ * With {@code party.battles-end.single-statement=false} the batch is settled with a few statements instead: one
+ * health penalty per user that lost, one query to load the members that fought, one atomic counter update per game
+ * and one update of the leaderboard totals of the owners of the games. The dirty members are flushed together once
+ * updated, with a version check: if a member was changed by someone else in the meantime the flush fails with an
+ * optimistic lock conflict and the whole settlement has to be run again, see
+ * {@link OptimisticRetry}. The health penalty, the member update and the game update,
+ * leaderboard included, are traced as spans of their own.
+ */
+@ApplicationScoped
+public class BattleSettlement {
+
+    @Inject
+    BattleTracing battleTracing;
+
+    @Inject
+    HealthRegen healthRegen;
+
+    @ConfigProperty(name = "party.battles-end.single-statement", defaultValue = "true")
+    boolean singleStatement;
+
+    /**
+     * Settles the given battle results, in order, inside the current transaction.
+     * <p>
+     * Every lost battle costs 10 health points to the other members of the user's party that are above 20 health.
+     * The losses of a user are coalesced in a single statement that applies up to one penalty per loss, stopping as
+     * soon as a member drops to 20 or below, which is what the per-battle statements would do one after the other.
+     * The members whose fight ends in the batch are excluded, since their health is taken from the battle result,
+     * while a member whose result is late, see below, is penalised like the other members of the party. The
+     * penalty is taken from the effective health, passive regeneration included, see {@link HealthRegen}.
+     * Levels never go down, so the penalty does not re-level anyone, while the members that fought are re-levelled
+     * according to the {@link LevelThresholds}.
+     * <p>
+     * A member only ends its fight with the result of the battle it is in, the {@link PartyMember#battleId} set when
+     * the fight started. A result that arrives late, e.g. a parked record retried after the member settled that
+     * battle or started a newer one, still counts for its game, but leaves the fighting flag, the health and the
+     * level of the member as they are.
+     *
+     * @param battleEnds the battle results, in the order they were received. The party member must not be null.
+     * @return a {@link Uni} containing the new leaderboard totals of the owners of the games, once all the updates
+     * are applied. A battle whose party member or game does not exist is skipped, with a warning
+     */
+    public Uni<List<Standing>> settle(List<BattleEnd> battleEnds) {
+        return settle(battleEnds, Context.current());
+    }
+
+    /**
+     * Settles the given battle results, in order, inside the current transaction, tracing the statement, or each
+     * stage, as a child of the given context.
+     *
+     * @param battleEnds the battle results, in the order they were received. The party member must not be null.
+     * @param parent     the context the settlement is traced in
+     * @return a {@link Uni} containing the new leaderboard totals of the owners of the games, once all the updates
+     * are applied. A battle whose party member or game does not exist is skipped, with a warning
+     */
+    public Uni<List<Standing>> settle(List<BattleEnd> battleEnds, Context parent) {
+        return singleStatement
+                ? battleTracing.span("battles-end settle-statement", parent, span -> settleInOneStatement(battleEnds))
+                : settleInStages(battleEnds, parent);
+    }
+
+    /**
+     * Settles the given battle results with a single statement. A member that fought several times in the batch
+     * ends up with the health of its last battle, and goes up one level at most, if the highest health of its
+     * battles reaches the next level.
+     *
+     * @param battleEnds the battle results, in the order they were received. The party member must not be null.
+     * @return a {@link Uni} containing the new leaderboard totals of the owners of the games
+     */
+    Uni<List<Standing>> settleInOneStatement(List<BattleEnd> battleEnds) {
+        if (battleEnds.isEmpty()) {
+            return Uni.createFrom().item(List.of());
+        }
+        StringBuilder sql = new StringBuilder("WITH battle (seq, memberId, userId, health, gameId, won, battleId) AS (VALUES ");
+        for (int i = 0; i < battleEnds.size(); i++) {
+            BattleEnd battleEnd = battleEnds.get(i);
+            sql.append(i > 0 ? ", " : "").append('(').append(i)
+                    .append(", CAST(?").append(3 * i + 1).append(" AS bigint)")
+                    .append(", CAST(?").append(3 * i + 2).append(" AS varchar)")
+                    .append(", CAST(?").append(3 * i + 3).append(" AS bigint)")
+                    // the game ID is not a parameter, so that a missing one does not need a typed null
+                    .append(", CAST(").append(battleEnd.gameId != null ? battleEnd.gameId.toString() : "NULL").append(" AS bigint)")
+                    .append(", ").append(battleEnd.isVictory ? 1 : 0)
+                    .append(", CAST(").append(battleEnd.id != null ? "'" + battleEnd.id + "'" : "NULL").append(" AS uuid)")
+                    .append(')');
+        }
+        sql.append("""
+                ),
+                current AS (
+                  SELECT b.* FROM battle b JOIN PartyMember p ON p.id = b.memberId
+                  WHERE p.fighting IS TRUE AND (p.battleId IS NULL OR p.battleId = b.battleId)),
+                fought AS (
+                  SELECT DISTINCT ON (memberId) memberId, health, max(health) OVER (PARTITION BY memberId) AS peak
+                  FROM current ORDER BY memberId, seq DESC),
+                losses AS (SELECT userId, count(*) AS losses FROM battle WHERE won = 0 GROUP BY userId),
+                penalty AS (
+                  UPDATE PartyMember p SET health = %1$s - 10 * least(l.losses, (%1$s - 11) / 10), healthUpdatedAt = ?%3$d,
+                    version = p.version + 1
+                  FROM losses l
+                  WHERE p.userId = l.userId AND %1$s > 20 AND NOT EXISTS (SELECT 1 FROM fought f WHERE f.memberId = p.id)
+                  RETURNING p.id),
+                settled AS (
+                  UPDATE PartyMember p SET fighting = false, villain = NULL, health = f.health, level = %2$s,
+                    healthUpdatedAt = ?%3$d, battleId = NULL, version = p.version + 1
+                  FROM fought f WHERE p.id = f.memberId
+                  RETURNING p.id),
+                found AS (SELECT id FROM PartyMember WHERE id IN (SELECT memberId FROM battle)),
+                results AS (
+                  SELECT b.gameId, sum(b.won) AS won, sum(1 - b.won) AS lost
+                  FROM battle b JOIN found m ON m.id = b.memberId WHERE b.gameId IS NOT NULL GROUP BY b.gameId),
+                games AS (
+                  UPDATE Game g SET won = g.won + r.won, lost = g.lost + r.lost, version = g.version + 1
+                  FROM results r WHERE g.id = r.gameId
+                  RETURNING g.id, g.userId, r.won, r.lost),
+                totals AS (
+                  INSERT INTO LeaderboardEntry (userId, won, lost)
+                  SELECT userId, sum(won), sum(lost) FROM games WHERE userId IS NOT NULL GROUP BY userId
+                  ON CONFLICT (userId) DO UPDATE SET won = LeaderboardEntry.won + excluded.won, lost = LeaderboardEntry.lost + excluded.lost
+                  RETURNING userId, won, lost)
+                SELECT 'settled', id, NULL, NULL FROM settled
+                UNION ALL SELECT 'stale', id, NULL, NULL FROM found WHERE id NOT IN (SELECT id FROM settled)
+                UNION ALL SELECT 'standing', won, userId, lost FROM totals
+                UNION ALL SELECT 'missing', gameId, NULL, NULL FROM results WHERE gameId NOT IN (SELECT id FROM games)
+                UNION ALL SELECT 'penalized', count(*), NULL, NULL FROM penalty""".formatted(
+                healthRegen.sql("?" + (3 * battleEnds.size() + 1)), LevelThresholds.sql("f.peak"), 3 * battleEnds.size() + 2));
+
+        Instant now = healthRegen.now();
+        return Panache.getSession().chain(session -> {
+                    var query = session.createNativeQuery(sql.toString());
+                    int i = 1;
+                    for (BattleEnd battleEnd : battleEnds) {
+                        query.setParameter(i++, battleEnd.partyMember.id);
+                        query.setParameter(i++, battleEnd.partyMember.userId);
+                        query.setParameter(i++, battleEnd.partyMember.health);
+                    }
+                    query.setParameter(i++, HealthRegen.epochSeconds(now));
+                    query.setParameter(i, now);
+                    return query.getResultList();
+                })
+                .map(rows -> {
+                    Set<Long> found = new HashSet<>();
+                    List<Standing> standings = new ArrayList<>();
+                    for (Object row : rows) {
+                        Object[] columns = (Object[]) row;
+                        long value = ((Number) columns[1]).longValue();
+                        switch ((String) columns[0]) {
+                            case "settled" -> found.add(value);
+                            case "stale" -> {
+                                found.add(value);
+                                Log.warn("Party member " + value + " is no longer fighting these battles, only counting their results");
+                            }
+                            case "standing" -> standings.add(new Standing((String) columns[2], value, ((Number) columns[3]).longValue()));
+                            case "missing" -> Log.warn("Game with ID " + value + " not found, skipping its battles");
+                            default -> {
+                                if (value > 0) {
+                                    Log.info("Updated health for " + value + " party members.");
+                                }
+                            }
+                        }
+                    }
+                    for (BattleEnd battleEnd : battleEnds) {
+                        if (!found.contains(battleEnd.partyMember.id)) {
+                            Log.warn("Party member " + battleEnd.partyMember.id + " not found, skipping battle " + battleEnd.id);
+                        }
+                    }
+                    return standings;
+                });
+    }
+
+    /**
+     * Settles the given battle results with a statement per stage, each stage traced as a child of the given context.
+     */
+    private Uni<List<Standing>> settleInStages(List<BattleEnd> battleEnds, Context parent) {
+        // the penalty never touches the members whose fight ends here, so it can follow their update
+        return battleTracing.span("battles-end member-update", parent, span -> updateMembers(battleEnds))
+                .call(fought -> battleTracing.span("battles-end health-penalty", parent,
+                        span -> applyHealthPenalties(battleEnds, fought.fighters())))
+                .chain(fought -> battleTracing.span("battles-end game-update", parent, span -> updateGames(fought.found())));
+    }
+
+    /**
+     * Marks the members that fought as no longer fighting, with the health of the battle result, and flushes them
+     * so that the update is done within the stage. A member that is no longer in the battle is left as it is, see
+     * {@link #settle(List)}.
+     *
+     * @return a {@link Uni} containing the battle results whose member was found, and the members whose fight ended
+     */
+    private Uni<Fought> updateMembers(List<BattleEnd> battleEnds) {
+        Set<Long> partyMemberIds = battleEnds.stream()
+                .map(battleEnd -> battleEnd.partyMember.id)
+                .collect(Collectors.toSet());
+        Instant now = healthRegen.now();
+
+        return PartyMember.<PartyMember>list("id in ?1", partyMemberIds)
+                .chain(members -> {
+                    Map<Long, PartyMember> membersById = members.stream()
+                            .collect(Collectors.toMap(member -> member.id, Function.identity()));
+
+                    // decided before any member is updated, like the single statement does
+                    List<BattleEnd> current = battleEnds.stream()
+                            .filter(battleEnd -> isCurrent(membersById.get(battleEnd.partyMember.id), battleEnd))
+                            .toList();
+                    // the highest health of the battles of each member, that decides its level like in the single statement
+                    Map<Long, Long> peaks = current.stream()
+                            .collect(Collectors.toMap(battleEnd -> battleEnd.partyMember.id,
+                                    battleEnd -> battleEnd.partyMember.health, Math::max));
+
+                    List<BattleEnd> found = new ArrayList<>();
+                    for (BattleEnd battleEnd : battleEnds) {
+                        PartyMember p = membersById.get(battleEnd.partyMember.id);
+                        if (p == null) {
+                            Log.warn("Party member " + battleEnd.partyMember.id + " not found, skipping battle " + battleEnd.id);
+                            continue;
+                        }
+                        found.add(battleEnd);
+                        if (!current.contains(battleEnd)) {
+                            Log.warn("Party member " + p.id + " is no longer fighting battle " + battleEnd.id + ", only counting its result");
+                            continue;
+                        }
+                        p.fighting = false;
+                        p.villain = null;
+                        p.health = battleEnd.partyMember.health;
+                        p.healthUpdatedAt = now;
+                        p.battleId = null;
+                    }
+                    peaks.forEach((id, peak) -> {
+                        PartyMember p = membersById.get(id);
+                        p.level = LevelThresholds.nextLevel(p.level, peak);
+                    });
+                    return Panache.getSession().chain(session -> session.flush()).replaceWith(new Fought(found, peaks.keySet()));
+                });
+    }
+
+    /**
+     * @return true if the member is still in the given battle, false if it is missing, already settled the battle,
+     * or moved on to a newer one, and must be left as it is. A member fighting a battle of unknown ID is in any of
+     * them
+     */
+    private static boolean isCurrent(PartyMember member, BattleEnd battleEnd) {
+        return member != null && Boolean.TRUE.equals(member.fighting)
+                && (member.battleId == null || member.battleId.equals(battleEnd.id));
+    }
+
+    /**
+     * Applies the penalties of the lost battles, to every member of the user but the ones whose fight just ended.
+     */
+    private Uni<Void> applyHealthPenalties(List<BattleEnd> battleEnds, Set<Long> fighters) {
+        Map<String, Long> lossesByUser = new LinkedHashMap<>();
+        Map<String, Set<Long>> fightersByUser = new HashMap<>();
+
+        for (BattleEnd battleEnd : battleEnds) {
+            String userId = battleEnd.partyMember.userId;
+            Set<Long> userFighters = fightersByUser.computeIfAbsent(userId, k -> new HashSet<>());
+            if (fighters.contains(battleEnd.partyMember.id)) {
+                userFighters.add(battleEnd.partyMember.id);
+            }
+            if (!battleEnd.isVictory) {
+                lossesByUser.merge(userId, 1L, Long::sum);
+            }
+        }
+
+        Uni<Void> penalties = Uni.createFrom().voidItem();
+        for (Map.Entry<String, Long> losses : lossesByUser.entrySet()) {
+            penalties = penalties.chain(() -> {
+                Log.info("Applying health reduction for " + losses.getValue() + " lost battles of user " + losses.getKey());
+                return PartyMember.applyLosses(losses.getKey(), losses.getValue(), fightersByUser.get(losses.getKey()), healthRegen)
+                        .onItem().invoke(updated -> {
+                            if (updated == 0) {
+                                Log.warn("No party members were updated.");
+                            } else {
+                                Log.info("Updated health for " + updated + " party members.");
+                            }
+                        })
+                        .onFailure().invoke(throwable -> Log.error("Error updating party members' health.", throwable))
+                        .replaceWithVoid();
+            });
+        }
+        return penalties;
+    }
+
+    private Uni<List<Standing>> updateGames(List<BattleEnd> battleEnds) {
+        Map<Long, int[]> resultsByGame = new LinkedHashMap<>();
+        for (BattleEnd battleEnd : battleEnds) {
+            if (battleEnd.gameId == null) {
+                continue;
+            }
+            int[] results = resultsByGame.computeIfAbsent(battleEnd.gameId, k -> new int[2]);
+            results[battleEnd.isVictory ? 0 : 1]++;
+        }
+
+        Uni<Void> updates = Uni.createFrom().voidItem();
+        for (Map.Entry<Long, int[]> results : resultsByGame.entrySet()) {
+            Long gameId = results.getKey();
+            updates = updates.chain(() -> Game.recordResults(gameId, results.getValue()[0], results.getValue()[1])
+                    .invoke(updated -> {
+                        if (updated == 0) {
+                            Log.warn("Game with ID " + gameId + " not found, skipping its battles");
+                        }
+                    })
+                    .replaceWithVoid());
+        }
+        // the leaderboard update joins the games, so the missing ones are left out
+        return updates.chain(() -> LeaderboardEntry.addResults(resultsByGame));
+    }
+
+    /**
+     * @param found    the battle results whose member was found
+     * @param fighters the members whose fight ended with these results
+     */
+    private record Fought(List<BattleEnd> found, Set<Long> fighters) {
+    }
+}
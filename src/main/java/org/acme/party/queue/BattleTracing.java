@@ -0,0 +1,226 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.acme.party.model.BattleEnd;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Follows a battle from the fight request to the battle update. The fight writes the battle ID, as correlation ID,
+ * the time the fight started and the OpenTelemetry context in the headers of the battle request, which the battle
+ * service copies on the battle result. The stages of the settlement are traced as children of that context, and
+ * the time from the fight to the settled update is recorded by the {@code battles.latency} timer, tagged by outcome
+ * (victory, defeat or failed).
+ */
+@ApplicationScoped
+public class BattleTracing {
+
+    public static final String CORRELATION_ID = "x-correlation-id";
+    public static final String FIGHT_STARTED_AT = "x-fight-started-at";
+
+    private static final TextMapGetter<Headers> KAFKA_HEADERS = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(Headers headers) {
+            List<String> keys = new ArrayList<>();
+            for (Header header : headers == null ? List.<Header>of() : headers) {
+                keys.add(header.key());
+            }
+            return keys;
+        }
+
+        @Override
+        public String get(Headers headers, String key) {
+            return headers == null ? null : value(headers, key);
+        }
+    };
+
+    @Inject
+    OpenTelemetry openTelemetry;
+
+    @Inject
+    Tracer tracer;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final Map<String, Timer> latencies = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        for (String outcome : List.of("victory", "defeat", "failed")) {
+            latencies.put(outcome, Timer.builder("battles.latency")
+                    .description("Time from the fight request to the settled battle update")
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+    }
+
+    /**
+     * @param correlationId the ID of the battle
+     * @return the headers of the battle request: the correlation ID, the time the fight started and the current
+     * OpenTelemetry context
+     */
+    public Map<String, String> fightHeaders(UUID correlationId) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(CORRELATION_ID, correlationId.toString());
+        headers.put(FIGHT_STARTED_AT, Long.toString(System.currentTimeMillis()));
+        openTelemetry.getPropagators().getTextMapPropagator()
+                .inject(Context.current(), headers, (carrier, key, value) -> carrier.put(key, value));
+        return headers;
+    }
+
+    /**
+     * @param headers the headers of a battle request
+     * @return the OpenTelemetry context they carry, the root context if none
+     */
+    public Context extract(Map<String, String> headers) {
+        return openTelemetry.getPropagators().getTextMapPropagator().extract(Context.root(), headers, new TextMapGetter<>() {
+            @Override
+            public Iterable<String> keys(Map<String, String> carrier) {
+                return carrier.keySet();
+            }
+
+            @Override
+            public String get(Map<String, String> carrier, String key) {
+                return carrier == null ? null : carrier.get(key);
+            }
+        });
+    }
+
+    /**
+     * Reads the trace of a battle result. The battle ID stands in for the correlation ID when the header is missing.
+     *
+     * @param headers   the headers of the battle end record
+     * @param battleEnd the decoded battle result
+     * @return the trace of the battle
+     */
+    public Trace trace(Headers headers, BattleEnd battleEnd) {
+        Context context = openTelemetry.getPropagators().getTextMapPropagator()
+                .extract(Context.root(), headers, KAFKA_HEADERS);
+        String correlationId = value(headers, CORRELATION_ID);
+        if (correlationId == null && battleEnd.id != null) {
+            correlationId = battleEnd.id.toString();
+        }
+        Instant fightStartedAt = null;
+        String startedAt = value(headers, FIGHT_STARTED_AT);
+        if (startedAt != null) {
+            try {
+                fightStartedAt = Instant.ofEpochMilli(Long.parseLong(startedAt));
+            } catch (NumberFormatException e) {
+                // not ours, the latency is not recorded
+            }
+        }
+        return new Trace(context, correlationId, fightStartedAt);
+    }
+
+    /**
+     * Runs the work in a span, ended when the work terminates.
+     *
+     * @param name   the name of the span
+     * @param parent the parent context
+     * @param work   the work, given the context of the span
+     * @return a {@link Uni} with the outcome of the work
+     */
+    public <T> Uni<T> span(String name, Context parent, Function<Context, Uni<T>> work) {
+        return span(name, parent, List.of(), work);
+    }
+
+    /**
+     * Runs the work in a span, ended when the work terminates. Used for the work done on behalf of several battles,
+     * which are linked to the span.
+     *
+     * @param name   the name of the span
+     * @param parent the parent context
+     * @param links  the contexts of the battles the work is done for
+     * @param work   the work, given the context of the span
+     * @return a {@link Uni} with the outcome of the work
+     */
+    public <T> Uni<T> span(String name, Context parent, Collection<Context> links, Function<Context, Uni<T>> work) {
+        return Uni.createFrom().deferred(() -> {
+            SpanBuilder builder = tracer.spanBuilder(name).setParent(parent);
+            for (Context link : links) {
+                SpanContext spanContext = Span.fromContext(link).getSpanContext();
+                if (spanContext.isValid()) {
+                    builder.addLink(spanContext);
+                }
+            }
+            Span span = builder.startSpan();
+            return work.apply(parent.with(span))
+                    .onItemOrFailure().invoke((item, failure) -> end(span, failure))
+                    .onCancellation().invoke(span::end);
+        });
+    }
+
+    /**
+     * @param name   the name of the span
+     * @param parent the parent context
+     * @return a started span, to be ended with {@link #end(Span, Throwable)}
+     */
+    public Span start(String name, Context parent) {
+        return tracer.spanBuilder(name).setParent(parent).startSpan();
+    }
+
+    /**
+     * @param span    a started span
+     * @param failure the failure of the traced work, null if it succeeded
+     */
+    public void end(Span span, Throwable failure) {
+        if (failure != null) {
+            span.recordException(failure);
+            span.setStatus(StatusCode.ERROR);
+        }
+        span.end();
+    }
+
+    /**
+     * Records the time since the fight started, if known.
+     *
+     * @param trace   the trace of the battle
+     * @param outcome victory, defeat or failed
+     */
+    public void recordLatency(Trace trace, String outcome) {
+        if (trace.fightStartedAt() == null) {
+            return;
+        }
+        Duration latency = Duration.between(trace.fightStartedAt(), Instant.now());
+        latencies.get(outcome).record(latency.isNegative() ? Duration.ZERO : latency);
+    }
+
+    private static String value(Headers headers, String key) {
+        if (headers == null) {
+            return null;
+        }
+        Header header = headers.lastHeader(key);
+        return header == null || header.value() == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The trace of a battle, as carried by the headers of its messages.
+     *
+     * @param context        the OpenTelemetry context of the fight, the root context if unknown
+     * @param correlationId  the correlation ID, null if unknown
+     * @param fightStartedAt the time the fight started, null if unknown
+     */
+    public record Trace(Context context, String correlationId, Instant fightStartedAt) {
+    }
+}
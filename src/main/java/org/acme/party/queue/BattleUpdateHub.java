@@ -0,0 +1,123 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.subscription.MultiEmitter;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.acme.party.model.BattleUpdate;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process broadcast of the battle updates to the users connected to this instance. Every subscriber gets its
+ * own buffer of {@code party.battles-update.buffer-size} updates: when a slow subscriber does not keep up, the
+ * oldest updates are dropped, so a subscriber never holds more than that in memory and never slows down the
+ * publisher. Subscribers hold no thread while idle.
+ * <p>
+ * The number of subscribers is exposed as the {@code battles.update.subscribers} gauge, and the updates as the
+ * {@code battles.update.events} counter, tagged by outcome (published or dropped).
+ */
+@ApplicationScoped
+public class BattleUpdateHub {
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.battles-update.buffer-size", defaultValue = "64")
+    int bufferSize;
+
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger connected = new AtomicInteger();
+
+    private Counter published;
+    private Counter dropped;
+
+    @PostConstruct
+    void init() {
+        Gauge.builder("battles.update.subscribers", connected, AtomicInteger::get)
+                .description("Subscribers of the battle updates")
+                .register(registry);
+        published = registry.counter("battles.update.events", "outcome", "published");
+        dropped = registry.counter("battles.update.events", "outcome", "dropped");
+    }
+
+    /**
+     * @param userId the user whose battle updates are streamed
+     * @return a {@link Multi} emitting the battle updates of the user published from now on, until cancelled
+     */
+    public Multi<BattleUpdate> subscribe(String userId) {
+        return Multi.createFrom().emitter(emitter -> {
+            Subscriber subscriber = new Subscriber(emitter);
+            subscribers.compute(userId, (k, users) -> {
+                Set<Subscriber> set = users != null ? users : ConcurrentHashMap.newKeySet();
+                set.add(subscriber);
+                return set;
+            });
+            connected.incrementAndGet();
+
+            emitter.onRequest(n -> subscriber.drain());
+            emitter.onTermination(() -> {
+                connected.decrementAndGet();
+                subscribers.computeIfPresent(userId, (k, users) -> {
+                    users.remove(subscriber);
+                    return users.isEmpty() ? null : users;
+                });
+            });
+        });
+    }
+
+    /**
+     * Delivers the update to the subscribers of its user, if any. Never blocks.
+     *
+     * @param update the battle update
+     */
+    public void publish(BattleUpdate update) {
+        Set<Subscriber> users = subscribers.get(update.getUser());
+        if (users == null) {
+            return;
+        }
+        for (Subscriber subscriber : users) {
+            published.increment();
+            if (subscriber.offer(update)) {
+                dropped.increment();
+            }
+            subscriber.drain();
+        }
+    }
+
+    private final class Subscriber {
+        private final MultiEmitter<? super BattleUpdate> emitter;
+        private final ArrayDeque<BattleUpdate> buffer = new ArrayDeque<>();
+
+        Subscriber(MultiEmitter<? super BattleUpdate> emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * @return true if the oldest buffered update was dropped to make room
+         */
+        synchronized boolean offer(BattleUpdate update) {
+            boolean full = buffer.size() >= bufferSize;
+            if (full) {
+                buffer.pollFirst();
+            }
+            buffer.addLast(update);
+            return full;
+        }
+
+        synchronized void drain() {
+            while (!buffer.isEmpty() && emitter.requested() > 0 && !emitter.isCancelled()) {
+                emitter.emit(buffer.pollFirst());
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.Startup;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of independent, ordered execution lanes. Work is hashed by key onto a lane: work with the same key
+ * runs strictly one after the other in submission order, while different lanes run in parallel, each on its own
+ * Vert.x context so that every lane gets its own reactive session.
+ * <p>
+ * The number of lanes is configured with {@code party.battles-end.lanes} and defaults to the number of cores.
+ * The queue depth of each lane is exposed as the {@code battles.lane.depth} gauge and the time spent waiting for
+ * the lane as the {@code battles.lane.lag} timer.
+ */
+@Startup
+@ApplicationScoped
+public class KeyedLanes {
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.battles-end.lanes")
+    Optional<Integer> laneCount;
+
+    private Lane[] lanes;
+
+    @PostConstruct
+    void init() {
+        lanes = new Lane[laneCount.orElse(Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = new Lane(vertx.getOrCreateContext(),
+                    Timer.builder("battles.lane.lag")
+                            .description("Time spent by battle results waiting for their lane")
+                            .tag("lane", String.valueOf(i))
+                            .register(registry));
+            Gauge.builder("battles.lane.depth", lane.depth, AtomicInteger::get)
+                    .description("Battle results queued or running on the lane")
+                    .tag("lane", String.valueOf(i))
+                    .register(registry);
+            lanes[i] = lane;
+        }
+    }
+
+    /**
+     * @param key the ordering key, e.g. the user ID
+     * @return the index of the lane the key is bound to
+     */
+    public int laneOf(String key) {
+        return Math.floorMod(key == null ? 0 : key.hashCode(), lanes.length);
+    }
+
+    /**
+     * Queues work on the given lane. The work starts once everything previously submitted to the lane has
+     * terminated, and runs on a fresh duplicated context of the lane.
+     * The returned {@link Uni} must be subscribed, otherwise the lane does not move on.
+     *
+     * @param lane the lane index, as returned by {@link #laneOf(String)}
+     * @param work the work to run
+     * @return a {@link Uni} with the outcome of the work
+     */
+    public <T> Uni<T> submit(int lane, Supplier<Uni<T>> work) {
+        Lane l = lanes[lane];
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = l.tail.getAndSet(done);
+        l.depth.incrementAndGet();
+        long enqueued = System.nanoTime();
+
+        return Uni.createFrom().completionStage(previous)
+                .emitOn(command -> VertxContext.createNewDuplicatedContext(l.context).runOnContext(ignored -> command.run()))
+                .chain(() -> {
+                    l.lag.record(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+                    return work.get();
+                })
+                .onTermination().invoke(() -> {
+                    l.depth.decrementAndGet();
+                    done.complete(null);
+                });
+    }
+
+    private static final class Lane {
+        final Context context;
+        final Timer lag;
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicReference<CompletableFuture<Void>> tail = new AtomicReference<>(CompletableFuture.completedFuture(null));
+
+        Lane(Context context, Timer lag) {
+            this.context = context;
+            this.lag = lag;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.acme.party.entity.LeaderboardEntry;
+import org.acme.party.model.LeaderboardDrift;
+import org.acme.party.model.Standing;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The users ranked by victories, then by fewest losses, kept in memory in a skip list so that the top of the
+ * leaderboard is read without touching the database. The totals are maintained in the {@link LeaderboardEntry}
+ * table by the battle settlement, and the new totals applied here once the settlement has committed. The table is
+ * loaded at startup, and rebuilt from the games if it is empty.
+ * <p>
+ * Each replica only applies the settlements of its own lanes, so every {@code party.leaderboard.refresh-interval}
+ * the whole table is loaded again and replaces the ranking in memory: the settlements of the other replicas, and a
+ * rebuild run on another replica, show up on every replica within that interval.
+ * <p>
+ * Between two refreshes the totals of a user only grow, so a total older than the one in memory, e.g. applied late
+ * by a concurrent lane, is ignored. The number of ranked users is exposed as the {@code battles.leaderboard.users}
+ * gauge.
+ */
+@ApplicationScoped
+public class Leaderboard {
+
+    static final Comparator<Standing> RANKING = Comparator.comparingLong(Standing::getWon).reversed()
+            .thenComparingLong(Standing::getLost)
+            .thenComparing(Standing::getUserId);
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.leaderboard.refresh-interval", defaultValue = "10s")
+    Duration refreshInterval;
+
+    private final ConcurrentSkipListSet<Standing> ranking = new ConcurrentSkipListSet<>(RANKING);
+    private final Map<String, Standing> byUser = new ConcurrentHashMap<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private long timerId;
+
+    @PostConstruct
+    void init() {
+        Gauge.builder("battles.leaderboard.users", byUser, Map::size)
+                .description("Users on the leaderboard")
+                .register(registry);
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withTransaction(() -> LeaderboardEntry.count()
+                        .chain(count -> count == 0 ? LeaderboardEntry.rebuild() : LeaderboardEntry.standings()))
+                .subscribe().with(
+                        standings -> {
+                            replaceAll(standings);
+                            Log.info("Leaderboard loaded with " + standings.size() + " users");
+                        },
+                        throwable -> Log.error("Error loading the leaderboard", throwable)));
+        timerId = vertx.setPeriodic(refreshInterval.toMillis(), id -> refresh());
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        vertx.cancelTimer(timerId);
+    }
+
+    /**
+     * Replaces the ranking with the totals of the table, on a fresh duplicated context, unless the previous refresh
+     * is still running.
+     */
+    void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withSession(LeaderboardEntry::standings)
+                .subscribe().with(
+                        standings -> {
+                            replaceAll(standings);
+                            refreshing.set(false);
+                        },
+                        throwable -> {
+                            Log.error("Error refreshing the leaderboard", throwable);
+                            refreshing.set(false);
+                        }));
+    }
+
+    /**
+     * @param top the number of users
+     * @return the first users of the leaderboard, best first
+     */
+    public List<Standing> top(int top) {
+        List<Standing> standings = new ArrayList<>(Math.min(top, byUser.size()));
+        Iterator<Standing> iterator = ranking.iterator();
+        while (standings.size() < top && iterator.hasNext()) {
+            standings.add(iterator.next());
+        }
+        return standings;
+    }
+
+    /**
+     * @param userId a user ID
+     * @return the totals of the user, no victories and no losses if the user has not fought yet
+     */
+    public Standing of(String userId) {
+        Standing standing = byUser.get(userId);
+        return standing != null ? standing : new Standing(userId, 0, 0);
+    }
+
+    /**
+     * Applies the totals of a committed settlement.
+     *
+     * @param standings the new totals of the users
+     */
+    public void apply(Collection<Standing> standings) {
+        for (Standing standing : standings) {
+            byUser.compute(standing.userId, (userId, current) -> {
+                if (current != null) {
+                    if (current.won + current.lost > standing.won + standing.lost) {
+                        return current;
+                    }
+                    ranking.remove(current);
+                }
+                ranking.add(standing);
+                return standing;
+            });
+        }
+    }
+
+    /**
+     * Recomputes the totals from the games and replaces the leaderboard with them.
+     *
+     * @return a {@link Uni} containing the number of users on the leaderboard
+     */
+    public Uni<Integer> rebuild() {
+        return Panache.withTransaction(LeaderboardEntry::rebuild)
+                .map(standings -> {
+                    replaceAll(standings);
+                    Log.info("Leaderboard rebuilt with " + standings.size() + " users");
+                    return standings.size();
+                });
+    }
+
+    /**
+     * @return a {@link Uni} containing the users whose totals do not match their games
+     */
+    public Uni<List<LeaderboardDrift>> check() {
+        return Panache.withSession(LeaderboardEntry::drift);
+    }
+
+    /**
+     * Replaces the whole ranking, dropping the users that are not in the given totals.
+     *
+     * @param standings the totals of every user
+     */
+    void replaceAll(List<Standing> standings) {
+        Map<String, Standing> rebuilt = new HashMap<>();
+        for (Standing standing : standings) {
+            rebuilt.put(standing.userId, standing);
+        }
+        for (String userId : byUser.keySet()) {
+            if (!rebuilt.containsKey(userId)) {
+                byUser.computeIfPresent(userId, (k, current) -> {
+                    ranking.remove(current);
+                    return null;
+                });
+            }
+        }
+        rebuilt.values().forEach(standing -> byUser.compute(standing.userId, (userId, current) -> {
+            if (current != null) {
+                ranking.remove(current);
+            }
+            ranking.add(standing);
+            return standing;
+        }));
+    }
+}
@@ -0,0 +1,114 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.OptimisticLockException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.StaleStateException;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs transactional work under optimistic concurrency control. When the work fails because a versioned entity
+ * was changed by someone else since it was read, the whole transaction is run again from scratch, after an
+ * exponential, jittered back-off, up to {@code party.optimistic-retry.max-retries} times.
+ * <p>
+ * Every attempt runs on a fresh duplicated context, so it gets its own reactive session and never sees the stale
+ * entities of the attempt that failed. The outcome is emitted back on the caller's context.
+ * <p>
+ * The attempts, the conflicts and the conflicts that were still failing after the last retry are counted per
+ * endpoint by {@code optimistic.lock.attempts}, {@code optimistic.lock.conflicts} and
+ * {@code optimistic.lock.exhausted}: the conflict rate of an endpoint is conflicts / attempts.
+ */
+@ApplicationScoped
+public class OptimisticRetry {
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "party.optimistic-retry.max-retries", defaultValue = "3")
+    int maxRetries;
+
+    @ConfigProperty(name = "party.optimistic-retry.initial-backoff", defaultValue = "10ms")
+    Duration initialBackoff;
+
+    @ConfigProperty(name = "party.optimistic-retry.max-backoff", defaultValue = "200ms")
+    Duration maxBackoff;
+
+    @ConfigProperty(name = "party.optimistic-retry.jitter", defaultValue = "0.5")
+    double jitter;
+
+    private final Map<String, Meters> meters = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the work in a new transaction, retrying the whole transaction on optimistic lock conflicts.
+     *
+     * @param endpoint the name the attempts and conflicts are counted under
+     * @param work     the transactional work. It is called again for every attempt, so it must read
+     *                 what it updates instead of reusing entities loaded outside of it.
+     * @return a {@link Uni} with the outcome of the first attempt that did not conflict, or the conflict
+     * once the retries are exhausted
+     */
+    public <T> Uni<T> withTransaction(String endpoint, Supplier<Uni<T>> work) {
+        Meters m = meters.computeIfAbsent(endpoint, this::register);
+        Context caller = Vertx.currentContext();
+
+        Uni<T> retried = Uni.createFrom().deferred(() -> {
+                    m.attempts.increment();
+                    return Panache.withTransaction(work);
+                })
+                .runSubscriptionOn(command -> VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext())
+                        .runOnContext(ignored -> command.run()))
+                .onFailure(OptimisticRetry::isConflict).invoke(conflict -> {
+                    m.conflicts.increment();
+                    Log.debug("Optimistic lock conflict on " + endpoint + ", retrying", conflict);
+                })
+                .onFailure(OptimisticRetry::isConflict).retry()
+                .withBackOff(initialBackoff, maxBackoff).withJitter(jitter).atMost(maxRetries)
+                .onFailure(OptimisticRetry::isConflict).invoke(conflict -> {
+                    m.exhausted.increment();
+                    Log.warn("Optimistic lock conflict on " + endpoint + " after " + maxRetries + " retries");
+                });
+
+        return caller == null ? retried : retried.emitOn(command -> caller.runOnContext(ignored -> command.run()));
+    }
+
+    /**
+     * @return true if the failure, or one of its causes, is an optimistic lock conflict
+     */
+    public static boolean isConflict(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof OptimisticLockException || t instanceof StaleStateException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private Meters register(String endpoint) {
+        return new Meters(
+                registry.counter("optimistic.lock.attempts", "endpoint", endpoint),
+                registry.counter("optimistic.lock.conflicts", "endpoint", endpoint),
+                registry.counter("optimistic.lock.exhausted", "endpoint", endpoint));
+    }
+
+    private record Meters(Counter attempts, Counter conflicts, Counter exhausted) {
+    }
+}
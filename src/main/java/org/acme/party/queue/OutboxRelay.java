@@ -0,0 +1,180 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.reactive.messaging.MutinyEmitter;
+import io.smallrye.reactive.messaging.TracingMetadata;
+import io.smallrye.reactive.messaging.rabbitmq.OutgoingRabbitMQMetadata;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.acme.party.entity.OutboxMessage;
+import org.acme.party.model.BattleCodec;
+import org.acme.party.model.BattleRequest;
+import org.acme.party.model.WireFormat;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Message;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drains the battles-request outbox: every {@code party.outbox.poll-interval} the pending messages are published
+ * in batches of {@code party.outbox.batch-size}, and marked as sent once the broker has confirmed them. Messages
+ * that are not confirmed stay pending and are published again by a later run. Every
+ * {@code party.outbox.cleanup-interval} the messages sent more than {@code party.outbox.retention} ago are deleted.
+ * <p>
+ * The messages are published as JSON, or with the compact {@link BattleCodec} encoding, as configured by
+ * {@code party.wire.battles-request.format}.
+ * <p>
+ * The headers written with a message, the correlation ID and the trace context of the fight, are published as the
+ * AMQP headers, and the publication is traced as part of the fight, see {@link BattleTracing}.
+ */
+@ApplicationScoped
+public class OutboxRelay {
+
+    static final String BATTLES_REQUEST = "battles-request";
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    @Channel(BATTLES_REQUEST)
+    MutinyEmitter<Object> battleRequestEmitter;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    BattleTracing battleTracing;
+
+    @ConfigProperty(name = "party.outbox.batch-size", defaultValue = "100")
+    int batchSize;
+
+    @ConfigProperty(name = "party.outbox.poll-interval", defaultValue = "200ms")
+    Duration pollInterval;
+
+    @ConfigProperty(name = "party.outbox.retention", defaultValue = "24h")
+    Duration retention;
+
+    @ConfigProperty(name = "party.outbox.cleanup-interval", defaultValue = "1h")
+    Duration cleanupInterval;
+
+    @ConfigProperty(name = "party.wire.battles-request.format", defaultValue = "json")
+    WireFormat format;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private long timerId;
+    private long cleanupTimerId;
+    private Counter relayed;
+    private Counter failed;
+
+    @PostConstruct
+    void init() {
+        relayed = registry.counter("battles.outbox.messages", "outcome", "sent");
+        failed = registry.counter("battles.outbox.messages", "outcome", "failed");
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        timerId = vertx.setPeriodic(pollInterval.toMillis(), id -> relay());
+        cleanupTimerId = vertx.setPeriodic(cleanupInterval.toMillis(), id -> cleanup());
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        vertx.cancelTimer(timerId);
+        vertx.cancelTimer(cleanupTimerId);
+    }
+
+    /**
+     * Runs the relay on a fresh duplicated context, unless the previous run is still draining.
+     */
+    void relay() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> drain()
+                .subscribe().with(
+                        sent -> running.set(false),
+                        throwable -> {
+                            Log.error("Error relaying the battles-request outbox", throwable);
+                            running.set(false);
+                        }));
+    }
+
+    private void cleanup() {
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withTransaction(() -> OutboxMessage.deleteSentBefore(Instant.now().minus(retention)))
+                .subscribe().with(
+                        deleted -> Log.debug("Deleted " + deleted + " sent outbox messages"),
+                        throwable -> Log.error("Error deleting the sent outbox messages", throwable)));
+    }
+
+    /**
+     * Publishes the pending messages batch after batch, until a batch is not full or not entirely confirmed: the
+     * messages that were not confirmed are left to the next run, instead of being sent again straight away while
+     * the broker is unavailable.
+     */
+    private Uni<Integer> drain() {
+        return Panache.withTransaction(() -> OutboxMessage.lockPending(BATTLES_REQUEST, batchSize)
+                        .chain(this::publish))
+                .chain(batch -> batch == batchSize ? drain() : Uni.createFrom().item(batch));
+    }
+
+    /**
+     * Publishes the messages in order and waits for the broker confirms; the confirmed messages are marked as sent
+     * when the transaction commits.
+     *
+     * @return a {@link Uni} containing the number of confirmed messages
+     */
+    Uni<Integer> publish(List<OutboxMessage> messages) {
+        if (messages.isEmpty()) {
+            return Uni.createFrom().item(0);
+        }
+
+        List<Uni<Void>> confirms = new ArrayList<>(messages.size());
+        for (OutboxMessage message : messages) {
+            confirms.add(battleRequestEmitter.sendMessage(toMessage(message))
+                    .onItem().invoke(() -> {
+                        message.sentAt = Instant.now();
+                        relayed.increment();
+                    })
+                    .onFailure().invoke(throwable -> {
+                        Log.warn("Battle request " + message.id + " not confirmed, it will be sent again", throwable);
+                        failed.increment();
+                    })
+                    .onFailure().recoverWithNull());
+        }
+        // the confirms complete on the broker's context, the session must be used back on its own
+        Context context = Vertx.currentContext();
+        return Uni.join().all(confirms).andFailFast()
+                .emitOn(command -> context.runOnContext(ignored -> command.run()))
+                .map(ignored -> (int) messages.stream().filter(message -> message.sentAt != null).count());
+    }
+
+    private Message<Object> toMessage(OutboxMessage message) {
+        Map<String, String> headers = message.headersAsMap();
+        OutgoingRabbitMQMetadata.Builder metadata = OutgoingRabbitMQMetadata.builder();
+        headers.forEach(metadata::withHeader);
+        return Message.of(encode(message.payloadAs(BattleRequest.class)))
+                .addMetadata(metadata.build())
+                .addMetadata(TracingMetadata.withCurrent(battleTracing.extract(headers)));
+    }
+
+    private Object encode(BattleRequest request) {
+        return format == WireFormat.BINARY ? BattleCodec.encode(request) : request;
+    }
+}
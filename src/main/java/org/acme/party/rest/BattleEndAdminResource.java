@@ -0,0 +1,54 @@
+package org.acme.party.rest;
+
+import io.smallrye.mutiny.Uni;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import org.acme.party.entity.ParkedBattle;
+import org.acme.party.queue.BattleRetry;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
+
+import java.util.List;
+
+@Path("admin/battles-end")
+@Produces(MediaType.APPLICATION_JSON)
+public class BattleEndAdminResource {
+
+    @Inject
+    BattleRetry battleRetry;
+
+    @ConfigProperty(name = "party.page.max-size", defaultValue = "500")
+    int maxPageSize;
+
+    /**
+     * Retrieves a keyset page of the dead battle end records, i.e. the records that could not be applied after all
+     * their attempts, with the cause of their last failure.
+     * When the page is full the cursor of the next page is returned in the {@value KeysetPage#NEXT_CURSOR} header.
+     *
+     * @param limit the maximum number of records to retrieve, capped by {@code party.page.max-size}
+     * @param after the cursor returned with the previous page, absent for the first page
+     * @return a {@link Uni} containing the dead records, by ID
+     */
+    @GET
+    @Path("dead")
+    public Uni<RestResponse<List<ParkedBattle>>> dead(@QueryParam("limit") Integer limit,
+                                                      @QueryParam("after") Long after) {
+        int size = KeysetPage.size(limit, maxPageSize);
+        return ParkedBattle.dead(KeysetPage.after(after), size)
+                .map(battles -> KeysetPage.of(battles, size, battle -> battle.id));
+    }
+
+    /**
+     * Replays dead battle end records, e.g. once the deploy that broke them has been fixed. The records are tried
+     * again right away, with all their attempts.
+     *
+     * @param id the ID of the dead record to replay, absent to replay all of them
+     * @return a {@link Uni} containing the number of records replayed
+     */
+    @POST
+    @Path("replay")
+    public Uni<Integer> replay(@QueryParam("id") Long id) {
+        return battleRetry.replay(id);
+    }
+}
@@ -1,17 +1,25 @@
 package org.acme.party.rest;
 
 import io.micrometer.core.annotation.Counted;
-import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.quarkus.hibernate.reactive.panache.PanacheQuery;
 import io.quarkus.hibernate.reactive.panache.common.WithTransaction;
 import io.quarkus.logging.Log;
 import io.quarkus.panache.common.Sort;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.sqlclient.Pool;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.acme.party.entity.Game;
+import org.acme.party.model.Standing;
+import org.acme.party.queue.Leaderboard;
+import org.acme.party.queue.OptimisticRetry;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
 
+import java.util.Date;
 import java.util.List;
 
 import static io.smallrye.mutiny.Uni.createFrom;
@@ -24,6 +32,21 @@ public class GameResource {
     @Inject
     jakarta.ws.rs.core.SecurityContext context;
 
+    @Inject
+    Pool client;
+
+    @Inject
+    OptimisticRetry optimisticRetry;
+
+    @Inject
+    Leaderboard leaderboard;
+
+    @ConfigProperty(name = "party.page.max-size", defaultValue = "500")
+    int maxPageSize;
+
+    @ConfigProperty(name = "party.leaderboard.max-top", defaultValue = "100")
+    int maxTop;
+
     /**
      * Starts a new game, persists the given game entity in the database, and logs the creation of the game.
      *
@@ -40,6 +63,22 @@ public class GameResource {
         game.userId = context.getUserPrincipal() != null ?
                 context.getUserPrincipal().getName() : "anonymous";
 
+        // bulk updates filter and increment these columns, so they are never left null
+        if (game.over == null) {
+            game.over = false;
+        }
+        if (game.won == null) {
+            game.won = 0;
+        }
+        if (game.lost == null) {
+            game.lost = 0;
+        }
+        if (game.created == null) {
+            game.created = new Date();
+        }
+        // the version is managed by Hibernate, a new game always starts from the initial one
+        game.version = null;
+
         return game.<Game>persist()// active record pattern & reactive data access
                 .onItem() // mutiny reactive pipeline on succesfully game save
                 .call(persistedGame -> {
@@ -50,19 +89,17 @@ public class GameResource {
     }
 
     /**
-     * Marks all game entities associated with the given user ID as "over".
-     * For every game with a matching user ID, the `over` property is set to `true` and the entity is persisted.
-     * Logs game update details during the operation.
+     * Marks all the running games associated with the given user ID as "over".
+     * The games are closed with a single bulk update on the indexed user ID and over status,
+     * so only the caller's running games are touched.
      *
      * @param userId the unique identifier of the user whose game entries are to be updated.
-     *               It is used to filter game entities from the database.
-     * @return a {@link Uni} instance indicating the asynchronous completion of the operation.
-     * If no games are found for the given user ID, it completes gracefully without any updates.
+     * @return a {@link Uni} containing the number of games marked as over, 0 if the user has no running game.
      */
     @PUT
     @WithTransaction
     @Path("game-over-user-games")
-    public Uni<Void> removeUserParties(final String userId) {
+    public Uni<Integer> removeUserParties(final String userId) {
         Log.info("game over for user id: " + userId);
 
         String currentUserId = context.getUserPrincipal() != null ?
@@ -72,33 +109,9 @@ public class GameResource {
             throw new SecurityException("Cannot remove parties for user id " + userId
                     + " because user request " + currentUserId + " <>  owner " + userId);
         }
-        Uni<List<Game>> gameUni = Game.listAll();
 
-        return gameUni.flatMap(games -> {
-
-            if (games.isEmpty()) {
-                // lista vuota
-                return Uni.createFrom().voidItem();
-            }
-
-            // filtra per user ID
-            List<Uni<PanacheEntityBase>> updateOperations = games.stream()
-                    .filter(game -> game.getUserId().equals(userId))
-                    .map(game -> {
-                        game.setOver(true);
-                        return game.persist();
-                    })
-                    .toList();
-
-            // Controlla se ci sono Uni da combinare
-            if (updateOperations.isEmpty()) {
-                Log.info("No games found to update for user id: " + userId);
-                return Uni.createFrom().voidItem();
-            }
-
-            // combina la lista in un solo Uni<Void> e ritorna
-            return Uni.combine().all().unis(updateOperations).discardItems();
-        });
+        return Game.gameOver(userId)
+                .onItem().invoke(updated -> Log.info("Game over for " + updated + " games of user id: " + userId));
     }
 
     /**
@@ -106,6 +119,8 @@ public class GameResource {
      * The method validates if the request is made by the user who owns the game and
      * marks the game as "over" if the validation succeeds. The updated game entity is then persisted.
      * If the game does not exist, a 404 (NOT_FOUND) response is returned.
+     * The read and the update run in one transaction that is retried if the game is changed concurrently,
+     * e.g. by a battle result.
      *
      * @param id the unique identifier of the game to be updated.
      * @return a {@link Uni} that resolves to a {@link Response} indicating the outcome of the operation.
@@ -113,7 +128,6 @@ public class GameResource {
      * If the game does not exist or the user does not have permission, it returns an appropriate status code.
      */
     @PUT
-    @WithTransaction
     @Path("over")
     public Uni<Response> over(final Long id) {
 
@@ -122,7 +136,7 @@ public class GameResource {
         String userId = context.getUserPrincipal() != null ?
                 context.getUserPrincipal().getName() : "anonymous";
 
-        return Game.findById(id)
+        return optimisticRetry.withTransaction("game/over", () -> Game.findById(id)
                 .onItem().ifNotNull().transformToUni(existingGame -> {
                     Game p = (Game) existingGame;
 
@@ -136,34 +150,99 @@ public class GameResource {
                     return p.persist()
                             .onItem().transform(updated -> Response.ok(p).build());
                 })
-                .onItem().ifNull().continueWith(Response.status(Response.Status.NOT_FOUND).build());
+                .onItem().ifNull().continueWith(Response.status(Response.Status.NOT_FOUND).build()));
     }
 
     /**
      * Retrieves a list of game entities based on the current user's context and the provided filter.
-     * If no user ID is available in the context, all game entities are returned sorted by user ID.
-     * If a user ID is available, the games are filtered and sorted based on the `over` parameter and creation timestamp.
+     * If a user ID is available and no limit is requested, the games are filtered based on the `over` parameter
+     * and sorted by creation timestamp.
+     * Otherwise a keyset page sorted by ID is returned: at most {@code limit} games (capped by
+     * {@code party.page.max-size}) with an ID greater than {@code after}, filtered by the user's context and the
+     * `over` parameter if applicable.
+     * When the page is full the cursor of the next page is returned in the {@value KeysetPage#NEXT_CURSOR} header.
      *
-     * @param over an optional parameter to filter games by their `over` status.
-     *             If `false`, only games that are not over are retrieved. If `null` or not provided, all games
-     *             for the current user are retrieved.
+     * @param over  an optional parameter to filter games by their `over` status.
+     *              If `false`, only games that are not over are retrieved. If `null` or not provided, all games
+     *              for the current user are retrieved.
+     * @param limit the maximum number of games to retrieve
+     * @param after the cursor returned with the previous page, absent for the first page
      * @return a {@link Uni} object containing a list of {@link Game} entities that match the specified criteria.
      */
     @GET
     @Path("get")
-    public Uni<List<Game>> allGames(@QueryParam("over") Boolean over) {
+    public Uni<RestResponse<List<Game>>> allGames(@QueryParam("over") Boolean over,
+                                                  @QueryParam("limit") Integer limit,
+                                                  @QueryParam("after") Long after) {
         String userId = context.getUserPrincipal() != null ?
                 context.getUserPrincipal().getName() : null;
 
-        if (userId == null) {
-            return Game.listAll(Sort.by("userId"));
-        } else {
+        if (userId != null && limit == null) {
+            Uni<List<Game>> games;
             if (over != null && over == false) {
-                return Game.list("userId = ?1 AND over = ?2 ", Sort.by("created"), userId, over);
+                games = Game.list("userId = ?1 AND over = ?2 ", Sort.by("created"), userId, over);
             } else {
-                return Game.list("userId", Sort.by("created"), userId);
+                games = Game.list("userId", Sort.by("created"), userId);
             }
+            return games.map(RestResponse::ok);
+        }
+
+        int size = KeysetPage.size(limit, maxPageSize);
+        PanacheQuery<Game> page;
+        if (userId == null) {
+            page = Game.find("id > ?1", Sort.by("id"), KeysetPage.after(after));
+        } else if (over != null && over == false) {
+            page = Game.find("userId = ?1 AND over = ?2 AND id > ?3", Sort.by("id"), userId, over, KeysetPage.after(after));
+        } else {
+            page = Game.find("userId = ?1 AND id > ?2", Sort.by("id"), userId, KeysetPage.after(after));
         }
+
+        return page.range(0, size - 1).list()
+                .map(games -> KeysetPage.of(games, size, Game::getId));
+    }
+
+    /**
+     * Streams the games of the current user, or of every user if no user ID is available, sorted by ID.
+     * The games are written to the response as a chunked JSON array while they are read from the database,
+     * so the memory used does not depend on the number of games.
+     *
+     * @param over an optional parameter to filter games by their `over` status.
+     * @return a {@link Multi} emitting the games
+     */
+    @GET
+    @Path("stream")
+    public Multi<Game> streamGames(@QueryParam("over") Boolean over) {
+        String userId = context.getUserPrincipal() != null ?
+                context.getUserPrincipal().getName() : null;
+
+        return Game.stream(client, userId, over);
+    }
+
+    /**
+     * Retrieves the users with the most victories over all their games, fewest losses first on a tie.
+     * The leaderboard is kept in memory and updated as the battles end, so the games are not read.
+     *
+     * @param top the number of users, 10 if not provided, capped by {@code party.leaderboard.max-top}
+     * @return the first users of the leaderboard, best first
+     */
+    @GET
+    @Path("leaderboard")
+    public List<Standing> leaderboard(@QueryParam("top") Integer top) {
+        return leaderboard.top(Math.max(1, Math.min(top != null ? top : 10, maxTop)));
+    }
+
+    /**
+     * Retrieves the victories and losses of the current user over all the user's games.
+     *
+     * @return the totals of the current user, or of "anonymous" if there is no user context
+     */
+    @GET
+    @Path("leaderboard/user")
+    public Standing userStanding() {
+        String userId = context.getUserPrincipal() != null ?
+                context.getUserPrincipal().getName() : "anonymous";
+
+        return leaderboard.of(userId);
     }
 
 }
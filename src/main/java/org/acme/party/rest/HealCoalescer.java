@@ -0,0 +1,193 @@
+package org.acme.party.rest;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+import org.acme.party.entity.Game;
+import org.acme.party.entity.PartyMember;
+import org.acme.party.model.HealRequest;
+import org.acme.party.model.HealthRegen;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces the heal requests received within a short window. The requests are buffered for
+ * {@code party.heal.coalesce.window}, or until {@code party.heal.coalesce.max-batch} requests are buffered, then
+ * the whole batch is applied in one transaction: one query for the games, one UPDATE per healed party and one
+ * UPDATE per healed party member, whatever the number of requests for them. Every caller completes with the
+ * response it would have received on its own, once the transaction has committed.
+ * <p>
+ * Heals of the same party member add up, and the heals of the same party are applied as if they ran one after
+ * the other. The party heals of a game are applied before the heals of single members of the same batch.
+ * <p>
+ * The number of requests per batch is exposed as the {@code party.heal.batch.size} distribution.
+ */
+@ApplicationScoped
+public class HealCoalescer {
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    HealthRegen healthRegen;
+
+    @ConfigProperty(name = "party.heal.coalesce.window", defaultValue = "5ms")
+    Duration window;
+
+    @ConfigProperty(name = "party.heal.coalesce.max-batch", defaultValue = "256")
+    int maxBatch;
+
+    private DistributionSummary batchSize;
+
+    private Batch pending; // guarded by this
+
+    @PostConstruct
+    void init() {
+        batchSize = DistributionSummary.builder("party.heal.batch.size")
+                .description("Heal requests applied by one coalesced transaction")
+                .register(registry);
+    }
+
+    /**
+     * Queues a heal request in the current batch.
+     *
+     * @param healRequest a valid heal request: the game ID is set, and so is the party member ID unless the
+     *                    whole party is healed
+     * @return a {@link Uni} with the response of the request, completing once its batch has committed
+     */
+    public Uni<Response> heal(HealRequest healRequest) {
+        return Uni.createFrom().deferred(() -> Uni.createFrom().completionStage(enqueue(healRequest)));
+    }
+
+    private CompletableFuture<Response> enqueue(HealRequest healRequest) {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        Batch full = null;
+        synchronized (this) {
+            if (pending == null) {
+                Batch batch = new Batch();
+                pending = batch;
+                vertx.setTimer(Math.max(1, window.toMillis()), ignored -> flush(batch));
+            }
+            pending.add(healRequest, response);
+            if (pending.size >= maxBatch) {
+                full = pending;
+                pending = null;
+            }
+        }
+        if (full != null) {
+            flush(full);
+        }
+        return response;
+    }
+
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (pending == batch) {
+                pending = null;
+            }
+        }
+        // the batch is flushed either by its timer or when it is full, whichever comes first
+        if (!batch.flushed.compareAndSet(false, true)) {
+            return;
+        }
+        batchSize.record(batch.size);
+
+        Map<CompletableFuture<Response>, Response> responses = new HashMap<>();
+        VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext()).runOnContext(ignored -> Panache
+                .withTransaction(() -> apply(batch, responses))
+                .subscribe().with(
+                        done -> responses.forEach(CompletableFuture::complete),
+                        failure -> {
+                            Log.error("Error applying " + batch.size + " heal requests", failure);
+                            batch.waiters().forEach(waiter -> waiter.completeExceptionally(failure));
+                        }));
+    }
+
+    private Uni<Void> apply(Batch batch, Map<CompletableFuture<Response>, Response> responses) {
+        return Game.<Game>list("id in ?1", batch.heals.keySet())
+                .chain(games -> {
+                    Map<Long, Game> gamesById = games.stream()
+                            .collect(Collectors.toMap(Game::getId, Function.identity()));
+
+                    Uni<Void> updates = Uni.createFrom().voidItem();
+                    for (Map.Entry<Long, GameHeals> entry : batch.heals.entrySet()) {
+                        Game game = gamesById.get(entry.getKey());
+                        GameHeals heals = entry.getValue();
+                        if (game == null) {
+                            Response notFound = Response.status(Response.Status.NOT_FOUND).entity("Game not found").build();
+                            heals.waiters().forEach(waiter -> responses.put(waiter, notFound));
+                            continue;
+                        }
+                        if (!heals.party.isEmpty()) {
+                            updates = updates.chain(() -> PartyMember.healParty(game.getUserId(), heals.party.size(), healthRegen)
+                                    .invoke(updated -> {
+                                        Response ok = Response.ok("All members of the party healed").build();
+                                        heals.party.forEach(waiter -> responses.put(waiter, ok));
+                                    })
+                                    .replaceWithVoid());
+                        }
+                        for (Map.Entry<Long, List<CompletableFuture<Response>>> member : heals.members.entrySet()) {
+                            updates = updates.chain(() -> PartyMember.heal(member.getKey(), member.getValue().size(), healthRegen)
+                                    .invoke(updated -> {
+                                        Response response = updated > 0
+                                                ? Response.ok("Party member healed").build()
+                                                : Response.status(Response.Status.NOT_FOUND).entity("Party member not found or does not belong to the game").build();
+                                        member.getValue().forEach(waiter -> responses.put(waiter, response));
+                                    })
+                                    .replaceWithVoid());
+                        }
+                    }
+                    return updates;
+                });
+    }
+
+    private static final class Batch {
+        final Map<Long, GameHeals> heals = new LinkedHashMap<>();
+        final AtomicBoolean flushed = new AtomicBoolean();
+        int size;
+
+        void add(HealRequest healRequest, CompletableFuture<Response> response) {
+            GameHeals game = heals.computeIfAbsent(healRequest.getGameId(), k -> new GameHeals());
+            if (Boolean.TRUE.equals(healRequest.getHealAll())) {
+                game.party.add(response);
+            } else {
+                game.members.computeIfAbsent(healRequest.getPartyMemberId(), k -> new ArrayList<>()).add(response);
+            }
+            size++;
+        }
+
+        List<CompletableFuture<Response>> waiters() {
+            List<CompletableFuture<Response>> waiters = new ArrayList<>(size);
+            heals.values().forEach(game -> waiters.addAll(game.waiters()));
+            return waiters;
+        }
+    }
+
+    private static final class GameHeals {
+        final List<CompletableFuture<Response>> party = new ArrayList<>();
+        final Map<Long, List<CompletableFuture<Response>>> members = new LinkedHashMap<>();
+
+        List<CompletableFuture<Response>> waiters() {
+            List<CompletableFuture<Response>> waiters = new ArrayList<>(party);
+            members.values().forEach(waiters::addAll);
+            return waiters;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.acme.party.rest;
+
+import org.jboss.resteasy.reactive.RestResponse;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Helpers for keyset (cursor based) pages ordered by entity ID. The cursor of the next page is the ID of the
+ * last item of the current page, returned in the {@value #NEXT_CURSOR} header and sent back in the
+ * {@code after} query parameter.
+ */
+final class KeysetPage {
+
+    static final String NEXT_CURSOR = "X-Next-Cursor";
+
+    private KeysetPage() {
+    }
+
+    /**
+     * @param limit   the requested page size, may be null
+     * @param maxSize the maximum page size
+     * @return the page size to use, between 1 and {@code maxSize}
+     */
+    static int size(Integer limit, int maxSize) {
+        return limit == null ? maxSize : Math.max(1, Math.min(limit, maxSize));
+    }
+
+    /**
+     * @param after the cursor sent by the client, may be null for the first page
+     * @return the ID after which the page starts
+     */
+    static long after(Long after) {
+        return after == null ? 0L : after;
+    }
+
+    /**
+     * Builds the page response, with the cursor of the next page when the page is full.
+     */
+    static <T> RestResponse<List<T>> of(List<T> items, int size, Function<T, Long> id) {
+        RestResponse.ResponseBuilder<List<T>> response = RestResponse.ResponseBuilder.ok(items);
+        if (items.size() == size) {
+            response.header(NEXT_CURSOR, id.apply(items.get(items.size() - 1)));
+        }
+        return response.build();
+    }
+}
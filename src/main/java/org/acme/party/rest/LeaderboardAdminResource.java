@@ -0,0 +1,48 @@
+package org.acme.party.rest;
+
+import io.smallrye.mutiny.Uni;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import org.acme.party.entity.Game;
+import org.acme.party.entity.LeaderboardEntry;
+import org.acme.party.model.LeaderboardDrift;
+import org.acme.party.queue.Leaderboard;
+
+import java.util.List;
+
+@Path("admin/leaderboard")
+@Produces(MediaType.APPLICATION_JSON)
+public class LeaderboardAdminResource {
+
+    @Inject
+    Leaderboard leaderboard;
+
+    /**
+     * Recomputes the {@link LeaderboardEntry} totals from the {@link Game} rows and reloads the leaderboard of this
+     * instance. The other instances load the new totals with their next refresh, within
+     * {@code party.leaderboard.refresh-interval}.
+     *
+     * @return a {@link Uni} containing the number of users on the leaderboard
+     */
+    @POST
+    @Path("rebuild")
+    public Uni<Integer> rebuild() {
+        return leaderboard.rebuild();
+    }
+
+    /**
+     * Compares the {@link LeaderboardEntry} totals with the {@link Game} rows, e.g. after games were edited or
+     * deleted through admin/game.
+     *
+     * @return a {@link Uni} containing the users whose totals do not match their games, empty if consistent
+     */
+    @GET
+    @Path("check")
+    public Uni<List<LeaderboardDrift>> check() {
+        return leaderboard.check();
+    }
+}
@@ -1,63 +1,93 @@
 package org.acme.party.rest;
 
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.hibernate.reactive.panache.PanacheQuery;
 import io.quarkus.hibernate.reactive.panache.common.WithTransaction;
 import io.quarkus.logging.Log;
 import io.quarkus.panache.common.Sort;
-import io.smallrye.graphql.client.GraphQLClient;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.sqlclient.Pool;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.acme.party.entity.EquipmentRotation;
 import org.acme.party.entity.Game;
+import org.acme.party.entity.OutboxMessage;
 import org.acme.party.entity.PartyMember;
-import org.acme.party.hero.GraphQLHeroClient;
+import org.acme.party.hero.CachingHeroClient;
 import org.acme.party.hero.Hero;
 import org.acme.party.hero.HeroClient;
 import org.acme.party.model.BattleRequest;
+import org.acme.party.model.BattleUpdate;
 import org.acme.party.model.FightRequest;
 import org.acme.party.model.HealRequest;
-import org.eclipse.microprofile.reactive.messaging.Channel;
-import org.eclipse.microprofile.reactive.messaging.Emitter;
-
+import org.acme.party.model.HealthRegen;
+import org.acme.party.queue.BattleAdmission;
+import org.acme.party.queue.BattleTracing;
+import org.acme.party.queue.BattleUpdateHub;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
+import org.jboss.resteasy.reactive.RestStreamElementType;
+
+import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.random.RandomGenerator;
 
 import static io.smallrye.mutiny.Uni.createFrom;
-import static org.acme.party.model.Armory.*;
+import static org.acme.party.model.Armory.VILLAINS;
 
 
 @Path("party")
 @Produces(MediaType.APPLICATION_JSON)
 public class PartyMemberResource {
 
-    Map<String, List<String>> lastArmourMap = new ConcurrentHashMap<>();
-    Map<String, List<String>> lastWeaponMap = new ConcurrentHashMap<>();
+    private final HeroClient heroClient;
 
     @Inject
-    @Channel("battles-request") // imperative messaging
-    Emitter<BattleRequest> battleRequestEmitter;
+    jakarta.ws.rs.core.SecurityContext context;
 
-    private final HeroClient heroClient;
+    @Inject
+    Pool client;
+
+    @ConfigProperty(name = "party.page.max-size", defaultValue = "500")
+    int maxPageSize;
+
+    @ConfigProperty(name = "party.heal.coalesce.enabled", defaultValue = "false")
+    boolean coalesceHeals;
 
     @Inject
-    jakarta.ws.rs.core.SecurityContext context;
+    HealCoalescer healCoalescer;
+
+    @Inject
+    BattleUpdateHub battleUpdateHub;
 
-    public PartyMemberResource(@GraphQLClient("inventory") GraphQLHeroClient heroClient) {
+    @Inject
+    BattleTracing battleTracing;
+
+    @Inject
+    BattleAdmission battleAdmission;
+
+    @Inject
+    HealthRegen healthRegen;
+
+    public PartyMemberResource(CachingHeroClient heroClient) {
         this.heroClient = heroClient;
     }
 
     /**
-     * d persists a new {@link PartyMember} entity with randomized weapon and armor,
-     * assigning the user ID of the current user or "anonymous" if there is no user context.
+     * Creates and persists a new {@link PartyMember} entity with a weapon and an armour not yet used by the user
+     * in the current rotation, assigning the user ID of the current user or "anonymous" if there is no user context.
+     * The equipment is claimed by the statement inserting the member, so the rotation holds across replicas at the
+     * cost of a single round trip, see {@link PartyMember#create(PartyMember, Instant)}.
      * Logs the creation of the party member upon successful persistence.
      *
      * @param partyMember the {@link PartyMember} entity to be created and persisted. It is augmented
-     *                    with a user ID, randomly chosen weapon, and armor before persisting.
+     *                    with a user ID, a weapon, and an armour before persisting.
      * @return a {@link Uni} object containing the persisted {@link PartyMember} entity upon
      * successful completion.
-     * Creates an
      */
     @Consumes(MediaType.APPLICATION_JSON)
     @POST
@@ -67,12 +97,8 @@ public class PartyMemberResource {
         partyMember.userId = context.getUserPrincipal() != null ?
                 context.getUserPrincipal().getName() : "anonymous";
 
-        partyMember.setArmour(getArmour(partyMember.userId));
-        partyMember.setWeapon(getWeapon(partyMember.userId));
-        partyMember.setLevel(1);
-
-        return partyMember.<PartyMember>persist().onItem()
-                .call(persistedParty -> {
+        return PartyMember.create(partyMember, healthRegen.now())
+                .onItem().call(persistedParty -> {
                     Log.info("Successfully created party member "
                             + persistedParty);
                     return createFrom().item(persistedParty);
@@ -81,20 +107,16 @@ public class PartyMemberResource {
 
     /**
      * Removes all parties associated with the specified user ID by deleting corresponding PartyMember entries.
-     * If no parties are associated with the given user ID, the method completes without performing any deletions.
+     * The deletion is a single bulk statement filtered on the indexed user ID, so only the caller's rows are touched.
      *
      * @param userId the unique identifier of the user whose party memberships are to be removed.
      *               Only parties mapped to this user ID will be affected.
-     * @return a {@link Uni} object representing the asynchronous completion of the operation.
-     * The Uni resolves to void upon successful deletion or if no parties are found for the specified user ID.
+     * @return a {@link Uni} containing the number of removed party members, 0 if the user has no party.
      */
     @DELETE
     @WithTransaction
     @Path("remove-user-parties")
-    public Uni<Void> removeUserParties(final String userId) {
-
-        lastArmourMap.put(userId, new ArrayList<>());
-        lastWeaponMap.put(userId, new ArrayList<>());
+    public Uni<Long> removeUserParties(final String userId) {
 
         Log.info("release parties for user id: " + userId);
 
@@ -106,22 +128,21 @@ public class PartyMemberResource {
                     + " because user request " + currentUserId + " <>  owner " + userId);
         }
 
-        Uni<List<PartyMember>> partysUni = PartyMember.listAll();
-
-        return partysUni.flatMap(parties ->
-                parties.isEmpty()
-                        ? Uni.createFrom().voidItem()
-                        : Uni.combine().all().unis(
-                        parties.stream()
-                                .filter(party -> party.getUserId().equals(userId))
-                                .map(PartyMember::delete)
-                                .toList()
-                ).discardItems()
-        );
+        return PartyMember.deleteByUserId(userId)
+                .onItem().invoke(deleted -> Log.info("Removed " + deleted + " party members for user id: " + userId))
+                .call(() -> EquipmentRotation.deleteById(userId));
     }
 
+    /**
+     * Heals a party member by 10 points, or every member of the game's party below 50 health by 20 points.
+     * When {@code party.heal.coalesce.enabled} is set, the requests are buffered for a few milliseconds and the
+     * requests of the same game are applied together by the {@link HealCoalescer}.
+     *
+     * @param healRequest the game ID, and either healAll or the party member ID
+     * @return a {@link Uni} containing the response: 200 once healed, 400 if the request is invalid,
+     * 404 if the game or the party member does not exist
+     */
     @PUT
-    @WithTransaction
     @Path("heal")
     public Uni<Response> heal(final HealRequest healRequest) {
         if (healRequest == null || healRequest.getGameId() == null) {
@@ -130,12 +151,20 @@ public class PartyMemberResource {
             );
         }
 
-        return Game.<Game>findById(healRequest.getGameId())
+        if (coalesceHeals) {
+            if (!Boolean.TRUE.equals(healRequest.getHealAll()) && healRequest.getPartyMemberId() == null) {
+                return Uni.createFrom().item(
+                        Response.status(Response.Status.BAD_REQUEST).entity("PartyMemberId is required when healAll is false").build()
+                );
+            }
+            return healCoalescer.heal(healRequest);
+        }
+
+        return Panache.withTransaction(() -> Game.<Game>findById(healRequest.getGameId())
                 .onItem().ifNotNull().transformToUni(game -> {
                     if (healRequest.getHealAll()) {
                         // Heal all PartyMembers in the game
-                        return PartyMember
-                                .update("health = health + 20 WHERE userId = ?1 AND health < 50", game.getUserId())
+                        return PartyMember.healParty(game.getUserId(), healthRegen)
                                 .onItem().transform(updated -> Response.ok("All members of the party healed").build());
                     } else {
                         if (healRequest.getPartyMemberId() == null) {
@@ -144,8 +173,7 @@ public class PartyMemberResource {
                             );
                         }
                         // Heal the specific PartyMember
-                        return PartyMember
-                                .update("health = health + 10 WHERE id = ?1 ", healRequest.getPartyMemberId())
+                        return PartyMember.heal(healRequest.getPartyMemberId(), healthRegen)
                                 .onItem().transform(updated -> {
                                     if (updated > 0) {
                                         return Response.ok("Party member healed").build();
@@ -155,21 +183,29 @@ public class PartyMemberResource {
                                 });
                     }
                 })
-                .onItem().ifNull().continueWith(() -> Response.status(Response.Status.NOT_FOUND).entity("Game not found").build());
+                .onItem().ifNull().continueWith(() -> Response.status(Response.Status.NOT_FOUND).entity("Game not found").build()));
     }
 
 
     /**
-     * Toggles the fighting status of a party member based on the provided FightRequest.
-     * Also handles associated game logic such as initiating or concluding a battle.
+     * Starts a fight for a party member based on the provided FightRequest.
+     * The ownership, alive, not already fighting and game exists checks and the fighting flag update are done by a
+     * single conditional statement, so concurrent requests for the same party member start exactly one battle.
+     * The battle request is written to the outbox in the same transaction, and published by the outbox relay, with
+     * the battle ID as correlation ID and the trace context of this request in its headers.
+     * The fight is first admitted by the {@link BattleAdmission}: when too many battles are in flight, globally or
+     * for the user, it is shed without touching the database. The battle stays in flight until its result arrives,
+     * and is released straight away if the fight is not started.
      *
      * @param fightRequest the request containing the party member ID and the game ID
      * @return a Uni<Response> indicating the result of the operation, which could be:
      * - a Response with the updated PartyMember details on success
-     * - a failure Response if the operations cannot be completed due to invalid state or missing resources
+     * - 403 if the party member belongs to another user
+     * - 404 if the party member or the game does not exist
+     * - 409 if the party member is dead or already fighting
+     * - 429 with a Retry-After header if too many battles are in flight
      */
     @PUT
-    @WithTransaction
     @Path("fight")
     public Uni<Response> fight(final FightRequest fightRequest) {
 
@@ -178,46 +214,68 @@ public class PartyMemberResource {
         String userId = context.getUserPrincipal() != null ?
                 context.getUserPrincipal().getName() : "anonymous";
 
-        return PartyMember.findById(fightRequest.partyMemberId)
-                .onItem().ifNotNull().transformToUni(existingParty -> {
-                    PartyMember p = (PartyMember) existingParty;
+        UUID battleId = UUID.randomUUID();
+        if (!battleAdmission.tryAcquire(battleId, userId)) {
+            Log.warn("Too many battles in flight, shedding the fight of user " + userId);
+            return Uni.createFrom().item(Response.status(Response.Status.TOO_MANY_REQUESTS)
+                    .header("Retry-After", battleAdmission.retryAfterSeconds())
+                    .entity("Too many battles in flight, retry later").build());
+        }
 
-                    if (!p.getUserId().equals(userId)) {
-                        return createFrom().failure(new IllegalStateException("Cannot fight with party with id "
-                                + fightRequest.partyMemberId + " because user request " + userId + " <>  owner " + p.getUserId()));
+        return Panache.withTransaction(() -> PartyMember.startFight(fightRequest.partyMemberId, userId, fightRequest.gameId, getVillain(), battleId, healthRegen)
+                .onItem().ifNotNull().transformToUni(p -> {
+                    BattleRequest b = new BattleRequest();
+                    b.setId(battleId);
+                    b.setPartyMember(p);
+                    b.setGameId(fightRequest.gameId);
+                    Log.info("battle request for party queued " + p + " game id" + b.getGameId());
+                    // published by the outbox relay once this transaction commits
+                    return OutboxMessage.of("battles-request", b, battleTracing.fightHeaders(b.id)).persist()
+                            .onItem().transform(persisted -> Response.ok(p).build());
+                })
+                .onItem().ifNull().switchTo(() -> rejectFight(fightRequest, userId)))
+                .onItemOrFailure().invoke((response, failure) -> {
+                    if (failure != null || response.getStatus() != Response.Status.OK.getStatusCode()) {
+                        battleAdmission.release(battleId);
                     }
+                });
+    }
 
-                    if (p.health <= 0) {
-                        return createFrom().failure(new IllegalStateException("Cannot fight with a dead hero" + p));
+    /**
+     * Finds out why a fight could not be started. Only runs when the conditional update did not match.
+     */
+    private Uni<Response> rejectFight(FightRequest fightRequest, String userId) {
+        return PartyMember.<PartyMember>findById(fightRequest.partyMemberId)
+                .chain(p -> {
+                    if (p == null) {
+                        return Uni.createFrom().item(Response.status(Response.Status.NOT_FOUND)
+                                .entity("Party member not found with id: " + fightRequest.partyMemberId).build());
+                    }
+                    if (!p.getUserId().equals(userId)) {
+                        return Uni.createFrom().item(Response.status(Response.Status.FORBIDDEN)
+                                .entity("Cannot fight with party with id " + fightRequest.partyMemberId
+                                        + " because user request " + userId + " <>  owner " + p.getUserId()).build());
+                    }
+                    if (p.health == null || p.health <= 0) {
+                        return Uni.createFrom().item(Response.status(Response.Status.CONFLICT)
+                                .entity("Cannot fight with a dead hero" + p).build());
+                    }
+                    if (Boolean.TRUE.equals(p.fighting)) {
+                        return Uni.createFrom().item(Response.status(Response.Status.CONFLICT)
+                                .entity("Party member " + p.id + " is already fighting").build());
                     }
-
                     return Game.findById(fightRequest.gameId)
-                            .onItem().ifNull().failWith(new IllegalStateException("Game not found with id: " + fightRequest.gameId))
-                            .onItem().transformToUni(game -> {
-                                p.setFighting(!p.getFighting());
-                                p.villain = getVillain();
-
-                                if (p.getFighting()) {
-                                    BattleRequest b = new BattleRequest();
-                                    b.setId(UUID.randomUUID());
-                                    b.setPartyMember(p);
-                                    b.setGameId(((Game) game).getId());
-                                    battleRequestEmitter.send(b);
-                                    Log.info("battle request for party sent " + p + " game id" + b.getGameId());
-                                } else {
-                                    Log.info("battle done for party " + p);
-                                }
-
-                                return p.persist()
-                                        .onItem().transform(updated -> Response.ok(p).build());
-                            });
-                })
-                .onItem().ifNull().continueWith(Response.status(Response.Status.NOT_FOUND).build());
+                            .map(game -> game == null
+                                    ? Response.status(Response.Status.NOT_FOUND)
+                                    .entity("Game not found with id: " + fightRequest.gameId).build()
+                                    : Response.status(Response.Status.CONFLICT)
+                                    .entity("Party member " + p.id + " changed while starting the fight").build());
+                });
     }
 
     /**
      * Retrieves a collection of heroes that are not currently part of the user's party.
-     * The method fetches all available heroes and the user's party members,
+     * The method fetches all available heroes and only the hero IDs of the user's party members,
      * then filters out heroes that are already included in the user's party.
      *
      * @return a {@link Uni} containing a collection of {@link Hero} objects that are not currently part of the user's party.
@@ -228,111 +286,122 @@ public class PartyMemberResource {
 
         // restituisce gli eroi non presenti nel party
 
+        String userId = context.getUserPrincipal() != null ?
+                context.getUserPrincipal().getName() : "anonymous";
+
         Uni<List<Hero>> availableHeroesUni = heroClient.allHeroes();
 
-        Uni<List<PartyMember>> partysUni = PartyMember.listAll();
+        Uni<List<Long>> partyHeroIdsUni = PartyMember.heroIdsOf(userId);
 
-        return Uni.combine().all().unis(availableHeroesUni, partysUni).with((availableHeroes, partys) -> {
+        return Uni.combine().all().unis(availableHeroesUni, partyHeroIdsUni)
+                .with(PartyMemberResource::notInParty);
+    }
 
-            Map<Long, Hero> heroesById = new HashMap<>();
-            for (Hero hero : availableHeroes) {
-                heroesById.put(hero.id, hero);
-            }
+    /**
+     * @return the heroes whose ID is not among the party's hero IDs, in the original order
+     */
+    public static Collection<Hero> notInParty(List<Hero> availableHeroes, List<Long> partyHeroIds) {
+        long[] owned = new long[partyHeroIds.size()];
+        for (int i = 0; i < owned.length; i++) {
+            owned[i] = partyHeroIds.get(i);
+        }
+        Arrays.sort(owned);
 
-            for (PartyMember partyMember : partys) {
-                if (partyMember.heroId != null &&
-                        partyMember.userId.equals(context.getUserPrincipal().getName())) {
-                    heroesById.remove(partyMember.heroId);
-                }
+        List<Hero> heroes = new ArrayList<>(availableHeroes.size());
+        for (Hero hero : availableHeroes) {
+            if (hero.id == null || Arrays.binarySearch(owned, hero.id) < 0) {
+                heroes.add(hero);
             }
-            return heroesById.values();
-        });
+        }
+        return heroes;
     }
 
     /**
      * Retrieves a list of {@link PartyMember} entities based on the current user's context.
-     * If no user ID is available, all party members are retrieved sorted by their hero ID.
-     * If a user ID is available, only party members associated with that user ID are retrieved
-     * and sorted by their hero ID.
+     * If a user ID is available and no limit is requested, all the party members associated with that user ID
+     * are retrieved and sorted by their hero ID.
+     * Otherwise a keyset page sorted by ID is returned: at most {@code limit} party members (capped by
+     * {@code party.page.max-size}) with an ID greater than {@code after}, filtered by the user's context if applicable.
+     * When the page is full the cursor of the next page is returned in the {@value KeysetPage#NEXT_CURSOR} header.
+     * The party members are read only, and returned with their effective health, passive regeneration included.
      *
+     * @param limit the maximum number of party members to retrieve
+     * @param after the cursor returned with the previous page, absent for the first page
      * @return a {@link Uni} containing a list of {@link PartyMember} entities fetched from the database.
-     * The list is sorted by hero ID and filtered by the user's context if applicable.
      */
     @GET
     @Path("all")
-    public Uni<List<PartyMember>> allPartys() {
+    public Uni<RestResponse<List<PartyMember>>> allPartys(@QueryParam("limit") Integer limit,
+                                                          @QueryParam("after") Long after) {
         String userId = context.getUserPrincipal() != null ?
                 context.getUserPrincipal().getName() : null;
 
-        if (userId == null) {
-            return PartyMember.listAll(Sort.by("heroId"));
-        } else {
-            return PartyMember.list("userId", Sort.by("heroId"), userId);
+        Instant now = healthRegen.now();
+        if (userId != null && limit == null) {
+            return readOnly(() -> PartyMember.<PartyMember>list("userId", Sort.by("heroId"), userId))
+                    .map(partyMembers -> RestResponse.ok(healthRegen.apply(partyMembers, now)));
         }
+
+        int size = KeysetPage.size(limit, maxPageSize);
+        PanacheQuery<PartyMember> page = userId == null
+                ? PartyMember.find("id > ?1", Sort.by("id"), KeysetPage.after(after))
+                : PartyMember.find("userId = ?1 AND id > ?2", Sort.by("id"), userId, KeysetPage.after(after));
+
+        return readOnly(() -> page.range(0, size - 1).list())
+                .map(partyMembers -> KeysetPage.of(healthRegen.apply(partyMembers, now), size, partyMember -> partyMember.id));
     }
 
     /**
-     * Retrieves a random villain name from the list of available villains.
+     * Loads party members in a read-only session: their effective health must never be flushed without its timestamp.
+     */
+    private static Uni<List<PartyMember>> readOnly(Supplier<Uni<List<PartyMember>>> query) {
+        return Panache.getSession().invoke(session -> session.setDefaultReadOnly(true)).chain(query);
+    }
+
+    /**
+     * Streams the {@link PartyMember} entities of the current user, or of every user if no user ID is available,
+     * sorted by ID. The party members are written to the response as a chunked JSON array while they are read
+     * from the database, so the memory used does not depend on the number of party members. They are streamed with
+     * their effective health, passive regeneration included.
      *
-     * @return a randomly selected villain name as a string.
+     * @return a {@link Multi} emitting the party members
      */
-    private String getVillain() {
-        int index = RandomGenerator.getDefault().nextInt(VILLAINS.length);
-        return VILLAINS[index];
+    @GET
+    @Path("stream")
+    public Multi<PartyMember> streamPartys() {
+        String userId = context.getUserPrincipal() != null ?
+                context.getUserPrincipal().getName() : null;
+
+        Instant now = healthRegen.now();
+        return PartyMember.stream(client, userId).map(partyMember -> healthRegen.apply(partyMember, now));
     }
 
     /**
-     * Selects and returns a random weapon from the available weapons list.
+     * Pushes the battle updates of the current user, or of "anonymous" if there is no user context, as server-sent
+     * events, from the moment the stream is opened. The connection stays open until the client closes it, so the
+     * front end learns when a fight is over without polling party/all and game/get.
+     * Only the updates settled by this instance are pushed; a client that does not keep up loses the oldest ones.
      *
-     * @return a randomly selected weapon as a {@code String}. The weapon is chosen
-     * from the current list of available weapons.
+     * @return a {@link Multi} emitting the battle updates of the user
      */
-    private String getWeapon(String userId) {
-        List<String> lastWeapons = lastWeaponMap.get(userId);
-        int index = RandomGenerator.getDefault().nextInt(WEAPONS.length);
-        String weapon = null;
-        if (lastWeapons != null) {
-            int i = 0;
-            while (i < WEAPONS.length) {
-                if (!lastWeapons.contains(WEAPONS[index])) {
-                    weapon = WEAPONS[index];
-                    lastWeapons.add(weapon);
-                    break;
-                }
-                index = (index + 1) % WEAPONS.length;
-                i++;
-            }
-        } else {
-            weapon = WEAPONS[index];
-            lastWeaponMap.put(userId, new ArrayList<>(List.of(weapon)));
-        }
-        return weapon;
+    @GET
+    @Path("updates")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    public Multi<BattleUpdate> battleUpdates() {
+        String userId = context.getUserPrincipal() != null ?
+                context.getUserPrincipal().getName() : "anonymous";
+
+        return battleUpdateHub.subscribe(userId);
     }
 
     /**
-     * Randomly selects an armour from the available armours array and returns it.
+     * Retrieves a random villain name from the list of available villains.
      *
-     * @return a randomly chosen armour as a {@code String} from the predefined list of armours.
+     * @return a randomly selected villain name as a string.
      */
-    private String getArmour(String userId) {
-        List<String> lastArmours = lastArmourMap.get(userId);
-        int index = RandomGenerator.getDefault().nextInt(ARMOURS.length);
-        String armour = null;
-        if (lastArmours != null) {
-            int i = 0;
-            while (i < ARMOURS.length) {
-                if (!lastArmours.contains(ARMOURS[index])) {
-                    armour = ARMOURS[index];
-                    lastArmours.add(armour);
-                    break;
-                }
-                index = (index + 1) % ARMOURS.length;
-                i++;
-            }
-        } else {
-            armour = ARMOURS[index];
-            lastArmourMap.put(userId, new ArrayList<>(List.of(armour)));
-        }
-        return armour;
+    public static String getVillain() {
+        int index = RandomGenerator.getDefault().nextInt(VILLAINS.length);
+        return VILLAINS[index];
     }
 }
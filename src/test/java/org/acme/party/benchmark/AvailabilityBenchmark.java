@@ -0,0 +1,53 @@
+package org.acme.party.benchmark;
+
+import org.acme.party.hero.Hero;
+import org.acme.party.rest.PartyMemberResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the set difference between the hero roster and the hero IDs of the user's party done by
+ * party/availability. Run with {@code ./mvnw test -Pjmh -Djmh.include=AvailabilityBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvailabilityBenchmark {
+
+    @Param({"100", "1000"})
+    int heroes;
+
+    @Param({"10", "100"})
+    int owned;
+
+    private List<Hero> roster;
+    private List<Long> partyHeroIds;
+
+    @Setup
+    public void setUp() {
+        roster = new ArrayList<>(heroes);
+        for (long id = 1; id <= heroes; id++) {
+            roster.add(new Hero(id, "hero-" + id, "Barbarian"));
+        }
+        List<Long> ids = new ArrayList<>();
+        for (long id = 1; id <= heroes; id++) {
+            ids.add(id);
+        }
+        Collections.shuffle(ids, new Random(42));
+        partyHeroIds = new ArrayList<>(ids.subList(0, Math.min(owned, heroes)));
+    }
+
+    @Benchmark
+    public Collection<Hero> notInParty() {
+        return PartyMemberResource.notInParty(roster, partyHeroIds);
+    }
+}
@@ -0,0 +1,87 @@
+package org.acme.party.benchmark;
+
+import io.quarkus.logging.Log;
+import io.quarkus.test.common.http.TestHTTPEndpoint;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusMock;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.RestAssured;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Tuple;
+import jakarta.inject.Inject;
+import org.acme.party.hero.GraphQLHeroClient;
+import org.acme.party.hero.Hero;
+import org.acme.party.rest.PartyMemberResource;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasSize;
+
+/**
+ * Response time of party/availability while the party member table grows by orders of magnitude. The anonymous
+ * caller always owns the same number of heroes, so the response time should stay flat.
+ * Run with {@code ./mvnw test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class AvailabilityBenchmarkTest {
+
+    private static final int HEROES = 50;
+    private static final int OWNED = 10;
+    private static final int ROUNDS = 50;
+
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("availability")
+    URL availability;
+
+    @Inject
+    Pool client;
+
+    @Test
+    public void availabilityIsFlatAsTableGrows() {
+        List<Hero> heroes = new ArrayList<>();
+        for (long id = 1; id <= HEROES; id++) {
+            heroes.add(new Hero(id, "hero-" + id, "Fighter"));
+        }
+        GraphQLHeroClient mock = Mockito.mock(GraphQLHeroClient.class);
+        Mockito.when(mock.allHeroes()).thenReturn(Uni.createFrom().item(heroes));
+        QuarkusMock.installMockForType(mock, GraphQLHeroClient.class);
+
+        for (int rows : new int[]{10_000, 100_000, 500_000}) {
+            seed(rows);
+
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                RestAssured.given()
+                        .when().get(availability)
+                        .then().statusCode(200)
+                        .body("$", hasSize(HEROES - OWNED));
+            }
+            Log.infof("party/availability: %d rows, avg %.3f ms",
+                    rows, (System.nanoTime() - start) / (double) ROUNDS / 1_000_000);
+        }
+
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+    }
+
+    private void seed(int rows) {
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+        // the anonymous caller owns the first OWNED heroes, the rest of the table belongs to other users;
+        // ids are far above the hibernate sequence so that the seeded rows never collide with persisted entities
+        client.preparedQuery("INSERT INTO PartyMember (id, userId, heroId, health, level, fighting, version) "
+                        + "SELECT 1000000000 + g, CASE WHEN g <= $2 THEN 'anonymous' ELSE 'user-' || (g % 1000) END, "
+                        + "1 + (g % $3), 100, 1, false, 0 FROM generate_series(1, $1) g")
+                .execute(Tuple.of(rows, OWNED, HEROES))
+                .await().indefinitely();
+        client.query("ANALYZE PartyMember").execute().await().indefinitely();
+    }
+}
@@ -0,0 +1,94 @@
+package org.acme.party.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.acme.party.entity.PartyMember;
+import org.acme.party.model.BattleCodec;
+import org.acme.party.model.BattleEnd;
+import org.acme.party.model.Fighter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the battle message encodings: the legacy path (full party member entity, decoded through a
+ * {@link JsonObject}), Jackson straight to the slim message, and the binary {@link BattleCodec}.
+ * The payload sizes are printed at setup. Run with {@code ./mvnw test -Pjmh -Djmh.include=BattleCodecBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BattleCodecBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private BattleEnd battleEnd;
+    private byte[] legacyJson;
+    private byte[] slimJson;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        battleEnd = new BattleEnd();
+        battleEnd.id = UUID.randomUUID();
+        battleEnd.gameId = 1_000_000_000L;
+        battleEnd.isVictory = true;
+        battleEnd.partyMember = new Fighter(1_000_000_001L, "alice", "Karlach", "Kagha", 130L);
+
+        // what the battle service sends back today: the whole entity
+        PartyMember partyMember = new PartyMember();
+        partyMember.id = battleEnd.partyMember.id;
+        partyMember.userId = battleEnd.partyMember.userId;
+        partyMember.heroId = 3L;
+        partyMember.heroName = battleEnd.partyMember.heroName;
+        partyMember.villain = battleEnd.partyMember.villain;
+        partyMember.fighting = true;
+        partyMember.health = battleEnd.partyMember.health;
+        partyMember.weapon = "Nyrulna_Unfaded_Icon";
+        partyMember.armour = "Helldusk_Armour_Unfaded_Icon";
+        partyMember.level = 3;
+        partyMember.version = 12L;
+        JsonObject legacy = new JsonObject()
+                .put("id", battleEnd.id.toString())
+                .put("gameId", battleEnd.gameId)
+                .put("isVictory", battleEnd.isVictory)
+                .put("partyMember", JsonObject.mapFrom(partyMember));
+        legacyJson = legacy.toBuffer().getBytes();
+        slimJson = mapper.writeValueAsBytes(battleEnd);
+        binary = BattleCodec.encode(battleEnd);
+
+        System.out.printf("payload bytes: legacy JSON %d, slim JSON %d, binary %d%n",
+                legacyJson.length, slimJson.length, binary.length);
+    }
+
+    @Benchmark
+    public BattleEnd decodeLegacyJson() {
+        return new JsonObject(Buffer.buffer(legacyJson)).mapTo(BattleEnd.class);
+    }
+
+    @Benchmark
+    public BattleEnd decodeSlimJson() throws IOException {
+        return mapper.readValue(slimJson, BattleEnd.class);
+    }
+
+    @Benchmark
+    public BattleEnd decodeBinary() {
+        return BattleCodec.decodeEnd(binary);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        return mapper.writeValueAsBytes(battleEnd);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BattleCodec.encode(battleEnd);
+    }
+}
@@ -0,0 +1,118 @@
+package org.acme.party.benchmark;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.vertx.VertxContextSupport;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Tuple;
+import jakarta.inject.Inject;
+import org.acme.party.model.BattleEnd;
+import org.acme.party.model.Fighter;
+import org.acme.party.queue.BattleSettlement;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput of the battles-end settlement in per-message mode (one transaction per battle result) compared with
+ * batch mode (one transaction per batch of results). The time each transaction holds its connection is reported as
+ * well, see {@link BattleSettlementStagedBenchmarkTest} for the settlement with a statement per stage.
+ * Run with {@code ./mvnw test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class BattleSettlementBenchmarkTest {
+
+    private static final int USERS = 100;
+    private static final int MEMBERS_PER_USER = 10;
+    private static final int BATTLES = 2_000;
+    private static final long ID_OFFSET = 1_000_000_000L;
+
+    @Inject
+    Pool client;
+
+    @Inject
+    BattleSettlement battleSettlement;
+
+    @Test
+    public void batchModeVersusPerMessageMode() throws Throwable {
+        for (int batchSize : new int[]{1, 10, 100, 500}) {
+            seed();
+            List<BattleEnd> battleEnds = battleEnds();
+
+            long[] holds = new long[(battleEnds.size() + batchSize - 1) / batchSize];
+            long start = System.nanoTime();
+            for (int from = 0; from < battleEnds.size(); from += batchSize) {
+                List<BattleEnd> batch = battleEnds.subList(from, Math.min(from + batchSize, battleEnds.size()));
+                // every result ends a fight, as if the fights had been started again since the previous batch
+                client.preparedQuery("UPDATE PartyMember SET fighting = true WHERE id = ANY($1)")
+                        .execute(Tuple.of(batch.stream().map(battleEnd -> battleEnd.partyMember.id).toArray(Long[]::new)))
+                        .await().indefinitely();
+                long begin = System.nanoTime();
+                VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(() -> battleSettlement.settle(batch)));
+                holds[from / batchSize] = System.nanoTime() - begin;
+            }
+            long elapsed = System.nanoTime() - start;
+            Arrays.sort(holds);
+
+            Long settled = client.query("SELECT sum(won + lost) FROM Game").execute()
+                    .await().indefinitely().iterator().next().getLong(0);
+            assertEquals(BATTLES, settled);
+
+            Log.infof("battles-end batch size %d: %d battles in %d ms, %.0f battles/s, connection held %.2f ms "
+                            + "on average and %.2f ms at p99 per transaction",
+                    batchSize, BATTLES, elapsed / 1_000_000, BATTLES / (elapsed / 1e9),
+                    Arrays.stream(holds).average().orElse(0) / 1e6, holds[(int) (holds.length * 0.99)] / 1e6);
+        }
+
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+        client.query("DELETE FROM Game").execute().await().indefinitely();
+    }
+
+    private List<BattleEnd> battleEnds() {
+        Random random = new Random(42);
+        List<BattleEnd> battleEnds = new ArrayList<>(BATTLES);
+        for (int i = 0; i < BATTLES; i++) {
+            int user = random.nextInt(USERS);
+
+            Fighter partyMember = new Fighter();
+            partyMember.id = ID_OFFSET + (long) user * MEMBERS_PER_USER + random.nextInt(MEMBERS_PER_USER);
+            partyMember.userId = "user-" + user;
+            partyMember.heroName = "Karlach";
+            partyMember.health = 50L + random.nextInt(100);
+
+            BattleEnd battleEnd = new BattleEnd();
+            battleEnd.id = UUID.randomUUID();
+            battleEnd.partyMember = partyMember;
+            battleEnd.gameId = ID_OFFSET + user;
+            battleEnd.isVictory = random.nextBoolean();
+            battleEnds.add(battleEnd);
+        }
+        return battleEnds;
+    }
+
+    private void seed() {
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+        client.query("DELETE FROM Game").execute().await().indefinitely();
+        // ids far above the hibernate sequences so that the seeded rows never collide with persisted entities
+        client.preparedQuery("INSERT INTO Game (id, userId, won, lost, over, created, version) "
+                        + "SELECT $1 + g, 'user-' || g, 0, 0, false, now(), 0 FROM generate_series(0, $2 - 1) g")
+                .execute(Tuple.of(ID_OFFSET, USERS))
+                .await().indefinitely();
+        client.preparedQuery("INSERT INTO PartyMember (id, userId, heroId, heroName, health, level, fighting, version) "
+                        + "SELECT $1 + g, 'user-' || (g / $3), g, 'Karlach', 100, 1, true, 0 FROM generate_series(0, $2 * $3 - 1) g")
+                .execute(Tuple.of(ID_OFFSET, USERS, MEMBERS_PER_USER))
+                .await().indefinitely();
+    }
+}
@@ -0,0 +1,29 @@
+package org.acme.party.benchmark;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Tag;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link BattleSettlementBenchmarkTest} with the battles settled by a statement per stage instead of a single one.
+ * Run with {@code ./mvnw test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@TestProfile(BattleSettlementStagedBenchmarkTest.Staged.class)
+@QuarkusTest
+public class BattleSettlementStagedBenchmarkTest extends BattleSettlementBenchmarkTest {
+
+    public static class Staged extends LocalProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            Map<String, String> config = new HashMap<>(super.getConfigOverrides());
+            config.put("party.battles-end.single-statement", "false");
+            return config;
+        }
+    }
+}
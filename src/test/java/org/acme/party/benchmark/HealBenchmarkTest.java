@@ -0,0 +1,113 @@
+package org.acme.party.benchmark;
+
+import io.quarkus.logging.Log;
+import io.quarkus.test.common.http.TestHTTPEndpoint;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Tuple;
+import jakarta.inject.Inject;
+import org.acme.party.rest.PartyMemberResource;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Integration benchmark for party/heal: concurrent clients heal a few party members of one game, and the heal
+ * requests per second are compared with the transactions per second committed by Postgres, as reported by
+ * pg_stat_database. This class runs with coalescing off, {@link HealCoalescingBenchmarkTest} with coalescing on.
+ * Run with {@code ./mvnw test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class HealBenchmarkTest {
+
+    private static final long ID_OFFSET = 1_000_000_000L;
+    private static final int MEMBERS = 10;
+    private static final int REQUESTS = 5_000;
+    private static final int CLIENTS = 32;
+
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("heal")
+    URL heal;
+
+    @Inject
+    Pool client;
+
+    @ConfigProperty(name = "party.heal.coalesce.enabled")
+    boolean coalescing;
+
+    @Test
+    public void transactionsPerHealRequest() throws Exception {
+        seed();
+        long commitsBefore = commits();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        long start = System.nanoTime();
+        try {
+            List<Future<Integer>> statuses = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                long partyMemberId = ID_OFFSET + i % MEMBERS;
+                statuses.add(executor.submit(() -> RestAssured
+                        .given()
+                        .contentType(ContentType.JSON)
+                        .body(Map.of("partyMemberId", partyMemberId, "gameId", ID_OFFSET, "healAll", false))
+                        .when().put(heal)
+                        .then().extract().statusCode()));
+            }
+            for (Future<Integer> status : statuses) {
+                assertEquals(200, status.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        // the statistics are flushed by the backends asynchronously
+        Thread.sleep(1_500);
+        long commits = commits() - commitsBefore;
+
+        Long health = client.query("SELECT sum(health) FROM PartyMember WHERE id >= " + ID_OFFSET)
+                .execute().await().indefinitely().iterator().next().getLong(0);
+        assertEquals(10L * REQUESTS, health);
+
+        Log.infof("heal (coalescing %s): %d requests, %.0f requests/s, %d transactions, %.0f transactions/s",
+                coalescing ? "on" : "off", REQUESTS, REQUESTS / seconds, commits, commits / seconds);
+
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+        client.query("DELETE FROM Game").execute().await().indefinitely();
+    }
+
+    private void seed() {
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+        client.query("DELETE FROM Game").execute().await().indefinitely();
+        client.preparedQuery("INSERT INTO Game (id, userId, won, lost, over, created, version) "
+                        + "VALUES ($1, 'anonymous', 0, 0, false, now(), 0)")
+                .execute(Tuple.of(ID_OFFSET))
+                .await().indefinitely();
+        client.preparedQuery("INSERT INTO PartyMember (id, userId, heroId, health, level, fighting, version) "
+                        + "SELECT $1 + g, 'anonymous', g, 0, 1, false, 0 FROM generate_series(0, $2 - 1) g")
+                .execute(Tuple.of(ID_OFFSET, MEMBERS))
+                .await().indefinitely();
+    }
+
+    private long commits() {
+        return client.query("SELECT xact_commit FROM pg_stat_database WHERE datname = current_database()")
+                .execute().await().indefinitely().iterator().next().getLong(0);
+    }
+}
@@ -0,0 +1,29 @@
+package org.acme.party.benchmark;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Tag;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link HealBenchmarkTest} with the heal requests coalesced.
+ * Run with {@code ./mvnw test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@TestProfile(HealCoalescingBenchmarkTest.Coalescing.class)
+@QuarkusTest
+public class HealCoalescingBenchmarkTest extends HealBenchmarkTest {
+
+    public static class Coalescing extends LocalProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            Map<String, String> config = new HashMap<>(super.getConfigOverrides());
+            config.put("party.heal.coalesce.enabled", "true");
+            return config;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.acme.party.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares a JMH JSON result file with a baseline produced the same way, e.g. on the main branch, and fails if a
+ * benchmark got slower than the threshold, in percent, beyond the error margins of both runs.
+ * Used by the jmh profile: {@code ./mvnw test -Pjmh -Djmh.baseline=baseline.json -Djmh.threshold=10}.
+ * Without a baseline it only reports where the results were written.
+ */
+public final class JmhCompare {
+
+    private JmhCompare() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File result = new File(args[0]);
+        String baselinePath = System.getProperty("jmh.baseline", "");
+        double threshold = Double.parseDouble(System.getProperty("jmh.threshold", "10"));
+
+        if (baselinePath.isBlank()) {
+            System.out.println("JMH results written to " + result + ", pass -Djmh.baseline=<file> to compare them");
+            return;
+        }
+
+        Map<String, Score> baseline = read(new File(baselinePath));
+        Map<String, Score> current = read(result);
+
+        int regressions = 0;
+        System.out.printf("%-90s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score now = entry.getValue();
+            Score before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-90s %14s %14.3f %9s%n", entry.getKey(), "-", now.score, "new");
+                continue;
+            }
+            // positive when slower, whatever the mode
+            double change = (now.higherIsBetter ? before.score - now.score : now.score - before.score)
+                    / before.score * 100;
+            boolean beyondError = Math.abs(now.score - before.score) > now.error + before.error;
+            boolean regression = change > threshold && beyondError;
+            if (regression) {
+                regressions++;
+            }
+            System.out.printf("%-90s %14.3f %14.3f %+8.1f%% %s%s%n", entry.getKey(), before.score, now.score,
+                    change, now.unit, regression ? "  REGRESSION" : "");
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) slower than the baseline by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Score> read(File file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (JsonNode run : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(run.path("benchmark").asText());
+            run.path("params").fields().forEachRemaining(param ->
+                    key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText()));
+            JsonNode metric = run.path("primaryMetric");
+            double error = metric.path("scoreError").asDouble();
+            scores.put(key.toString(), new Score(
+                    metric.path("score").asDouble(),
+                    Double.isNaN(error) ? 0 : error,
+                    metric.path("scoreUnit").asText(),
+                    "thrpt".equals(run.path("mode").asText())));
+        }
+        return scores;
+    }
+
+    private record Score(double score, double error, String unit, boolean higherIsBetter) {
+    }
+}
@@ -0,0 +1,46 @@
+package org.acme.party.benchmark;
+
+import org.acme.party.model.LevelThresholds;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the level progression applied to every member that fought, and of the SQL rendering used by the
+ * bulk heals. Run with {@code ./mvnw test -Pjmh -Djmh.include=LevelThresholdsBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevelThresholdsBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    private final int[] levels = new int[SAMPLES];
+    private final long[] healths = new long[SAMPLES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            levels[i] = 1 + random.nextInt(LevelThresholds.MAX_LEVEL);
+            healths[i] = random.nextInt(600);
+        }
+    }
+
+    @Benchmark
+    public int nextLevel() {
+        int i = next++ & (SAMPLES - 1);
+        return LevelThresholds.nextLevel(levels[i], healths[i]);
+    }
+
+    @Benchmark
+    public String sql() {
+        return LevelThresholds.sql("health + 10 * ?2");
+    }
+}
@@ -0,0 +1,53 @@
+package org.acme.party.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.acme.party.entity.PartyMember;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the Jackson serialization of the party member lists returned by party/all.
+ * Run with {@code ./mvnw test -Pjmh -Djmh.include=PartyMemberJsonBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartyMemberJsonBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int size;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private List<PartyMember> partyMembers;
+
+    @Setup
+    public void setUp() {
+        partyMembers = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            PartyMember partyMember = new PartyMember();
+            partyMember.id = (long) i;
+            partyMember.userId = "user-" + i % 10;
+            partyMember.heroId = (long) i;
+            partyMember.heroName = "Karlach";
+            partyMember.fighting = false;
+            partyMember.health = 100L;
+            partyMember.weapon = "Nyrulna_Unfaded_Icon";
+            partyMember.armour = "Helldusk_Armour_Unfaded_Icon";
+            partyMember.level = 2;
+            partyMember.version = 0L;
+            partyMembers.add(partyMember);
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return mapper.writeValueAsBytes(partyMembers);
+    }
+}
@@ -0,0 +1,27 @@
+package org.acme.party.benchmark;
+
+import org.acme.party.queue.BattleRequestProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the quote picked for every battle update, for each hero and for an unknown one.
+ * Run with {@code ./mvnw test -Pjmh -Djmh.include=QuoteBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuoteBenchmark {
+
+    @Param({"Astarion", "Karlach", "The_Dark_Urge", "Minsc"})
+    String heroName;
+
+    @Benchmark
+    public String getQuote() {
+        return BattleRequestProcessor.getQuote(heroName);
+    }
+}
@@ -0,0 +1,68 @@
+package org.acme.party.benchmark;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.logging.Log;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.vertx.VertxContextSupport;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Tuple;
+import jakarta.inject.Inject;
+import org.acme.party.entity.PartyMember;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Integration benchmark for the bulk removal of the parties of a user: the table grows by an order of magnitude
+ * at each step while the caller always owns the same number of rows, so the delete latency should stay flat.
+ * Run with {@code ./mvnw test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class RemoveUserPartiesBenchmarkTest {
+
+    private static final int USERS = 1_000;
+    private static final int ROUNDS = 20;
+
+    @Inject
+    Pool client;
+
+    @Test
+    public void deleteLatencyIsFlatAsTableGrows() throws Throwable {
+        for (int rows : new int[]{10_000, 100_000, 500_000}) {
+            long perUser = rows / USERS;
+            long totalNanos = 0;
+
+            seed(rows);
+            for (int round = 0; round < ROUNDS; round++) {
+                String userId = "user-" + round;
+
+                long start = System.nanoTime();
+                Long deleted = VertxContextSupport.subscribeAndAwait(() ->
+                        Panache.withTransaction(() -> PartyMember.deleteByUserId(userId)));
+                totalNanos += System.nanoTime() - start;
+
+                assertEquals(perUser, deleted);
+            }
+
+            Log.infof("remove-user-parties: %d rows, %d rows per user, avg %.3f ms",
+                    rows, perUser, totalNanos / (double) ROUNDS / 1_000_000);
+        }
+
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+    }
+
+    private void seed(int rows) {
+        client.query("DELETE FROM PartyMember").execute().await().indefinitely();
+        // ids far above the hibernate sequence so that the seeded rows never collide with persisted entities
+        client.preparedQuery("INSERT INTO PartyMember (id, userId, heroId, health, level, fighting, version) "
+                        + "SELECT 1000000000 + g, 'user-' || (g % $2), g, 100, 1, false, 0 FROM generate_series(1, $1) g")
+                .execute(Tuple.of(rows, USERS))
+                .await().indefinitely();
+        client.query("ANALYZE PartyMember").execute().await().indefinitely();
+    }
+}
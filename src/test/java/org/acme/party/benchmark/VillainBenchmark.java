@@ -0,0 +1,33 @@
+package org.acme.party.benchmark;
+
+import org.acme.party.rest.PartyMemberResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the random villain picked for every fight, from one thread and from as many threads as cores.
+ * Every pick creates its own generator with {@code RandomGenerator.getDefault()}, so the threads share no state:
+ * the multi-threaded run checks that the pick scales with the cores, it does not measure contention on a shared
+ * generator. Run with {@code ./mvnw test -Pjmh -Djmh.include=VillainBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VillainBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public String getVillain() {
+        return PartyMemberResource.getVillain();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String getVillainAllCores() {
+        return PartyMemberResource.getVillain();
+    }
+}
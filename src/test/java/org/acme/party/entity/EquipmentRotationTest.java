@@ -0,0 +1,100 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.vertx.VertxContextSupport;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import jakarta.inject.Inject;
+import org.acme.party.model.Equipment;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static org.acme.party.model.Armory.ARMOURS;
+import static org.acme.party.model.Armory.WEAPONS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class EquipmentRotationTest {
+
+    @Inject
+    Vertx vertx;
+
+    @Test
+    public void testNoDuplicateUntilExhausted() throws Throwable {
+        VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> EquipmentRotation.deleteById("rotation")));
+        // armours and weapons rotate on their own boundaries, the armours every ARMOURS.length claims
+        Set<String> armours = new HashSet<>();
+        int claims = 0;
+        for (int rotation = 0; rotation < 3; rotation++) {
+            Set<String> weapons = new HashSet<>();
+            for (int i = 0; i < WEAPONS.length; i++) {
+                Equipment equipment = VertxContextSupport.subscribeAndAwait(() ->
+                        Panache.withTransaction(() -> EquipmentRotation.claim("rotation")));
+                if (claims++ % ARMOURS.length == 0) {
+                    armours.clear();
+                }
+                assertTrue(armours.add(equipment.armour));
+                assertTrue(weapons.add(equipment.weapon));
+            }
+            assertEquals(Set.of(WEAPONS), weapons);
+        }
+        VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> EquipmentRotation.deleteById("rotation")));
+    }
+
+    @Test
+    public void testCreatedMembersGetTheClaimedEquipment() throws Throwable {
+        Set<String> weapons = new HashSet<>();
+        for (int i = 0; i < WEAPONS.length; i++) {
+            PartyMember partyMember = new PartyMember();
+            partyMember.userId = "creation";
+            partyMember.heroName = "Karlach";
+            partyMember.health = 100L;
+            PartyMember created = VertxContextSupport.subscribeAndAwait(() ->
+                    Panache.withTransaction(() -> PartyMember.create(partyMember, Instant.now())));
+
+            assertTrue(weapons.add(created.weapon));
+            // the returned member is the row that was inserted
+            PartyMember found = VertxContextSupport.subscribeAndAwait(() ->
+                    Panache.withSession(() -> PartyMember.<PartyMember>findById(created.id)));
+            assertEquals(List.of("creation", "Karlach", 100L, 1, 0L, created.weapon, created.armour),
+                    List.of(found.userId, found.heroName, found.health, found.level, found.version, found.weapon, found.armour));
+            assertNull(found.heroId);
+        }
+        assertEquals(Set.of(WEAPONS), weapons);
+
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(() -> PartyMember.delete("userId", "creation")
+                .call(() -> EquipmentRotation.deleteById("creation"))));
+    }
+
+    @Test
+    public void testConcurrentClaimsAreNotDuplicated() throws Throwable {
+        // every claim runs in its own transaction on its own context, as it would on different replicas
+        List<Uni<Equipment>> claims = new ArrayList<>();
+        for (int i = 0; i < WEAPONS.length; i++) {
+            claims.add(Uni.createFrom()
+                    .deferred(() -> Panache.withTransaction(() -> EquipmentRotation.claim("concurrent")))
+                    .runSubscriptionOn(command -> VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext())
+                            .runOnContext(ignored -> command.run())));
+        }
+        List<Equipment> equipments = Uni.join().all(claims).andFailFast().await().atMost(Duration.ofMinutes(1));
+
+        Set<String> weapons = new HashSet<>();
+        equipments.forEach(equipment -> weapons.add(equipment.weapon));
+        assertEquals(Set.of(WEAPONS), weapons);
+
+        VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> EquipmentRotation.deleteById("concurrent")));
+    }
+}
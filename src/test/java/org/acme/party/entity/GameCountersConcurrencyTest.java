@@ -0,0 +1,60 @@
+package org.acme.party.entity;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.vertx.VertxContextSupport;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import jakarta.inject.Inject;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class GameCountersConcurrencyTest {
+
+    private static final int BATTLES = 2_000;
+
+    @Inject
+    Vertx vertx;
+
+    @Test
+    public void testParallelBattleEndsOnOneGame() throws Throwable {
+        Game game = VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> GameRepositoryTest.game("stress", false).persist()));
+
+        List<Uni<Integer>> battleEnds = new ArrayList<>();
+        for (int i = 0; i < BATTLES; i++) {
+            boolean victory = i % 3 != 0;
+            // every battle end runs in its own transaction on its own context, like the consumer lanes
+            battleEnds.add(Uni.createFrom()
+                    .deferred(() -> Panache.withTransaction(() -> Game.recordResults(game.id, victory ? 1 : 0, victory ? 0 : 1)))
+                    .runSubscriptionOn(command -> VertxContext.createNewDuplicatedContext(vertx.getOrCreateContext())
+                            .runOnContext(ignored -> command.run())));
+        }
+        List<Integer> updated = Uni.join().all(battleEnds).andFailFast().await().atMost(Duration.ofMinutes(2));
+        assertEquals(BATTLES, updated.stream().mapToInt(Integer::intValue).sum());
+
+        Game result = VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withSession(() -> Game.<Game>findById(game.id)));
+        int lost = (BATTLES + 2) / 3;
+        assertEquals(BATTLES - lost, result.won);
+        assertEquals(lost, result.lost);
+
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(Game::deleteAll));
+    }
+
+    @Test
+    public void testUnknownGameIsNotUpdated() throws Throwable {
+        assertEquals(0, VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> Game.recordResults(-1L, 1, 0))));
+    }
+}
@@ -0,0 +1,38 @@
+package org.acme.party.entity;
+
+import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.vertx.RunOnVertxContext;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class GameRepositoryTest {
+
+    @Test
+    @RunOnVertxContext
+    public void testGameOver(TransactionalUniAsserter asserter) {
+        asserter.execute(() -> game("alice", false).persist());
+        asserter.execute(() -> game("alice", false).persist());
+        asserter.execute(() -> game("alice", true).persist());
+        asserter.execute(() -> game("bob", false).persist());
+        asserter.assertEquals(() -> Game.gameOver("alice"), 2);
+        asserter.assertEquals(() -> Game.count("over = false"), 1l);
+        asserter.assertEquals(() -> Game.gameOver("alice"), 0);
+        asserter.execute(() -> Game.deleteAll());
+    }
+
+    static Game game(String userId, boolean over) {
+        Game game = new Game();
+        game.userId = userId;
+        game.over = over;
+        game.won = 0;
+        game.lost = 0;
+        game.created = new Date();
+        return game;
+    }
+}
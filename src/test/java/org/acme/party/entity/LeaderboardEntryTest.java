@@ -0,0 +1,66 @@
+package org.acme.party.entity;
+
+import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.vertx.RunOnVertxContext;
+import io.smallrye.mutiny.Uni;
+import org.acme.party.model.LeaderboardDrift;
+import org.acme.party.model.Standing;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class LeaderboardEntryTest {
+
+    @Test
+    @RunOnVertxContext
+    public void testTotalsFollowTheGames(TransactionalUniAsserter asserter) {
+        String alice = "alice-" + UUID.randomUUID();
+        String bob = "bob-" + UUID.randomUUID();
+        Long[] ids = new Long[3];
+
+        // start from totals consistent with whatever games the other tests left
+        asserter.execute(() -> LeaderboardEntry.rebuild());
+        asserter.execute(() -> GameRepositoryTest.game(alice, false).persist().invoke(game -> ids[0] = ((Game) game).id));
+        asserter.execute(() -> GameRepositoryTest.game(alice, false).persist().invoke(game -> ids[1] = ((Game) game).id));
+        asserter.execute(() -> GameRepositoryTest.game(bob, false).persist().invoke(game -> ids[2] = ((Game) game).id));
+
+        asserter.execute(() -> Game.recordResults(ids[0], 2, 1)
+                .chain(() -> Game.recordResults(ids[1], 1, 0))
+                .chain(() -> Game.recordResults(ids[2], 0, 3)));
+        asserter.assertEquals(() -> LeaderboardEntry.addResults(results(ids[0], 2, 1, ids[1], 1, 0, ids[2], 0, 3))
+                        .map(HashSet::new),
+                Set.of(new Standing(alice, 3, 1), new Standing(bob, 0, 3)));
+        asserter.assertEquals(() -> LeaderboardEntry.addResults(results(ids[1], 1, 1)), List.of(new Standing(alice, 4, 2)));
+        asserter.execute(() -> Game.recordResults(ids[1], 1, 1));
+        asserter.assertEquals(() -> drift(alice, bob), List.of());
+
+        // a game edited behind the leaderboard's back
+        asserter.execute(() -> Game.update("won = won + 5 WHERE id = ?1", ids[2]));
+        asserter.assertEquals(() -> drift(alice, bob), List.of(new LeaderboardDrift(bob, 0, 3, 5, 3)));
+
+        asserter.assertTrue(() -> LeaderboardEntry.rebuild()
+                .map(standings -> standings.contains(new Standing(bob, 5, 3))));
+        asserter.assertEquals(() -> drift(alice, bob), List.of());
+
+        asserter.execute(() -> Game.delete("userId in ?1", List.of(alice, bob)));
+        asserter.execute(() -> LeaderboardEntry.delete("userId in ?1", List.of(alice, bob)));
+    }
+
+    private static Uni<List<LeaderboardDrift>> drift(String... userIds) {
+        List<String> users = List.of(userIds);
+        return LeaderboardEntry.drift().map(drifts -> drifts.stream().filter(drift -> users.contains(drift.userId)).toList());
+    }
+
+    private static Map<Long, int[]> results(Object... gameWonLost) {
+        Map<Long, int[]> results = new LinkedHashMap<>();
+        for (int i = 0; i < gameWonLost.length; i += 3) {
+            results.put((Long) gameWonLost[i], new int[]{(Integer) gameWonLost[i + 1], (Integer) gameWonLost[i + 2]});
+        }
+        return results;
+    }
+}
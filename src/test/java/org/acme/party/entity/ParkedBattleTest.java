@@ -0,0 +1,48 @@
+package org.acme.party.entity;
+
+import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.vertx.RunOnVertxContext;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class ParkedBattleTest {
+
+    @Test
+    @RunOnVertxContext
+    public void testAttemptsAreClaimedOnce(TransactionalUniAsserter asserter) {
+        Long[] id = new Long[1];
+        Instant later = Instant.now().plus(Duration.ofHours(1));
+
+        asserter.execute(() -> ParkedBattle.of("key", new byte[]{1, 2, 3}, Map.of("x-correlation-id", "abc"),
+                        new IllegalStateException("boom"), Instant.now().minusSeconds(1))
+                .persist().invoke(battle -> id[0] = ((ParkedBattle) battle).id));
+        asserter.assertTrue(() -> ParkedBattle.due(1000).map(due -> due.stream().anyMatch(battle -> battle.id.equals(id[0]))));
+        asserter.assertEquals(() -> ParkedBattle.<ParkedBattle>findById(id[0]).map(ParkedBattle::headersAsMap),
+                Map.of("x-correlation-id", "abc"));
+
+        // a second replica read the record with the same number of attempts
+        asserter.assertTrue(() -> ParkedBattle.claimAttempt(id[0], 1, later));
+        asserter.assertFalse(() -> ParkedBattle.claimAttempt(id[0], 1, later));
+        asserter.assertFalse(() -> ParkedBattle.due(1000).map(due -> due.stream().anyMatch(battle -> battle.id.equals(id[0]))));
+
+        asserter.execute(() -> ParkedBattle.attemptFailed(id[0], new IllegalArgumentException("still boom"), true));
+        asserter.assertFalse(() -> ParkedBattle.claimAttempt(id[0], 2, later));
+        asserter.assertTrue(() -> ParkedBattle.dead(0, 1000).map(dead -> dead.stream().anyMatch(battle -> battle.id.equals(id[0])
+                && battle.failureClass.equals(IllegalArgumentException.class.getName()))));
+
+        asserter.assertEquals(() -> ParkedBattle.replay(id[0]), 1);
+        asserter.assertEquals(() -> ParkedBattle.replay(id[0]), 0);
+        asserter.assertTrue(() -> ParkedBattle.due(1000).map(due -> due.stream().anyMatch(battle -> battle.id.equals(id[0])
+                && battle.attempts == 0)));
+
+        asserter.execute(() -> ParkedBattle.deleteById(id[0]));
+    }
+}
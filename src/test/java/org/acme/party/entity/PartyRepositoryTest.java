@@ -1,12 +1,21 @@
 package org.acme.party.entity;
 
+import io.quarkus.hibernate.reactive.panache.Panache;
 import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import io.quarkus.test.vertx.RunOnVertxContext;
+import org.acme.party.model.HealthRegen;
+import org.acme.party.model.HealthRegenTest;
+import org.acme.party.model.LevelThresholds;
 import org.acme.party.testprofile.profile.LocalProfile;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
 @TestProfile(LocalProfile.class)
 @QuarkusTest
 public class PartyRepositoryTest {
@@ -19,4 +28,140 @@ public class PartyRepositoryTest {
         asserter.assertEquals(() -> PartyMember.count(), 1l);
         asserter.execute(() -> PartyMember.deleteAll());
     }
-}
\ No newline at end of file
+
+    @Test
+    @RunOnVertxContext
+    public void testDeleteByUserId(TransactionalUniAsserter asserter) {
+        asserter.execute(() -> member("alice").persist());
+        asserter.execute(() -> member("alice").persist());
+        asserter.execute(() -> member("bob").persist());
+        asserter.assertEquals(() -> PartyMember.deleteByUserId("alice"), 2l);
+        asserter.assertEquals(() -> PartyMember.count(), 1l);
+        asserter.assertEquals(() -> PartyMember.deleteByUserId("alice"), 0l);
+        asserter.execute(() -> PartyMember.deleteAll());
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testHeroIdsOf(TransactionalUniAsserter asserter) {
+        asserter.execute(() -> member("alice", 1L).persist());
+        asserter.execute(() -> member("alice", 2L).persist());
+        asserter.execute(() -> member("bob", 3L).persist());
+        asserter.assertEquals(() -> PartyMember.heroIdsOf("alice").map(ids -> ids.stream().sorted().toList()), List.of(1L, 2L));
+        asserter.assertEquals(() -> PartyMember.heroIdsOf("carol"), List.of());
+        asserter.execute(() -> PartyMember.deleteAll());
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testHealReLevelsInSql(TransactionalUniAsserter asserter) {
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            PartyMember partyMember = member("alice");
+            partyMember.level = 1 + random.nextInt(LevelThresholds.MAX_LEVEL);
+            partyMember.health = (long) random.nextInt(600);
+            // the level computed by the statement must match the threshold table
+            int expected = LevelThresholds.nextLevel(partyMember.level, partyMember.health + 10);
+            asserter.execute(() -> partyMember.persist());
+            asserter.assertEquals(() -> PartyMember.heal(partyMember.id, HealthRegenTest.regen(Instant.now())), 1);
+            // read the column, the persisted entity in the session is not touched by the bulk update
+            asserter.assertEquals(() -> Panache.getSession().chain(session -> session
+                    .createSelectionQuery("select level from PartyMember where id = ?1", Integer.class)
+                    .setParameter(1, partyMember.id)
+                    .getSingleResult()), expected);
+        }
+        asserter.execute(() -> PartyMember.deleteAll());
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testCoalescedPartyHealsStopAtFifty(TransactionalUniAsserter asserter) {
+        long[] healths = {0, 29, 30, 49, 60};
+        // one party heal at a time, 20 points while below 50
+        long[] expected = {60, 69, 50, 69, 60};
+        for (long health : healths) {
+            PartyMember partyMember = member("alice");
+            partyMember.level = 1;
+            partyMember.health = health;
+            asserter.execute(() -> partyMember.persist());
+        }
+        asserter.assertEquals(() -> PartyMember.healParty("alice", 3, HealthRegenTest.regen(Instant.now())), 4);
+        asserter.assertEquals(() -> Panache.getSession().chain(session -> session
+                .createSelectionQuery("select health from PartyMember where userId = ?1 order by id", Long.class)
+                .setParameter(1, "alice")
+                .getResultList()), List.of(expected[0], expected[1], expected[2], expected[3], expected[4]));
+        asserter.execute(() -> PartyMember.deleteAll());
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testRegenerationInSqlMatchesJava(TransactionalUniAsserter asserter) {
+        Random random = new Random(11);
+        for (int i = 0; i < 50; i++) {
+            PartyMember partyMember = member("alice");
+            partyMember.level = 1;
+            partyMember.health = (long) random.nextInt(150);
+            partyMember.fighting = random.nextInt(5) == 0;
+            partyMember.healthUpdatedAt = HealthRegenTest.T0;
+            HealthRegen regen = HealthRegenTest.regen(HealthRegenTest.T0.plusSeconds(random.nextInt(4 * 3600)));
+            // no heal: the statement only materializes the effective health
+            long expected = regen.health(partyMember.health, partyMember.fighting, partyMember.healthUpdatedAt, regen.now());
+            asserter.execute(() -> partyMember.persist());
+            asserter.assertEquals(() -> PartyMember.heal(partyMember.id, 0, regen), 1);
+            asserter.assertEquals(() -> Panache.getSession().chain(session -> session
+                    .createSelectionQuery("select health from PartyMember where id = ?1", Long.class)
+                    .setParameter(1, partyMember.id)
+                    .getSingleResult()), expected);
+        }
+        asserter.execute(() -> PartyMember.deleteAll());
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testWritesStartFromTheRegeneratedHealth(TransactionalUniAsserter asserter) {
+        PartyMember[] members = new PartyMember[3];
+        for (int i = 0; i < members.length; i++) {
+            PartyMember partyMember = member("alice");
+            partyMember.level = 1;
+            partyMember.health = 40L;
+            partyMember.fighting = false;
+            partyMember.healthUpdatedAt = HealthRegenTest.T0;
+            members[i] = partyMember;
+            asserter.execute(() -> partyMember.persist());
+        }
+        Instant later = HealthRegenTest.T0.plus(Duration.ofMinutes(30));
+        HealthRegen regen = HealthRegenTest.regen(later);
+
+        // 40 regenerated to 70, then healed, the timestamp moves to the time of the heal
+        asserter.assertEquals(() -> PartyMember.heal(members[0].id, regen), 1);
+        // 70 after regeneration, 2 losses take it down to 50
+        asserter.assertEquals(() -> PartyMember.applyLosses("alice", 2, List.of(members[0].id), regen), 2);
+        asserter.assertEquals(() -> Panache.getSession().chain(session -> session
+                .createSelectionQuery("select health from PartyMember where userId = ?1 order by id", Long.class)
+                .setParameter(1, "alice")
+                .getResultList()), List.of(80L, 50L, 50L));
+        asserter.assertEquals(() -> Panache.getSession().chain(session -> session
+                .createSelectionQuery("select count(*) from PartyMember where userId = ?1 and healthUpdatedAt = ?2", Long.class)
+                .setParameter(1, "alice")
+                .setParameter(2, later)
+                .getSingleResult()), 3L);
+
+        // nothing is written while the members regenerate
+        HealthRegen muchLater = HealthRegenTest.regen(later.plus(Duration.ofMinutes(10)));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(members[1].id)
+                .map(partyMember -> muchLater.health(partyMember.health, partyMember.fighting, partyMember.healthUpdatedAt, muchLater.now())), 60L);
+        asserter.execute(() -> PartyMember.deleteAll());
+    }
+
+    private static PartyMember member(String userId) {
+        PartyMember partyMember = new PartyMember();
+        partyMember.userId = userId;
+        return partyMember;
+    }
+
+    private static PartyMember member(String userId, Long heroId) {
+        PartyMember partyMember = member(userId);
+        partyMember.heroId = heroId;
+        return partyMember;
+    }
+}
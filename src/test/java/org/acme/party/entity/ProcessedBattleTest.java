@@ -0,0 +1,32 @@
+package org.acme.party.entity;
+
+import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.vertx.RunOnVertxContext;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class ProcessedBattleTest {
+
+    @Test
+    @RunOnVertxContext
+    public void testBattlesAreClaimedOnce(TransactionalUniAsserter asserter) {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+
+        asserter.assertEquals(() -> ProcessedBattle.claim(List.of(first, second)), Set.of(first, second));
+        asserter.assertEquals(() -> ProcessedBattle.claim(List.of(second, third)), Set.of(third));
+        asserter.assertEquals(() -> ProcessedBattle.claim(List.of()), Set.of());
+        asserter.assertEquals(() -> ProcessedBattle.count(), 3L);
+        asserter.assertEquals(() -> ProcessedBattle.deleteProcessedBefore(Instant.now().plusSeconds(60)), 3L);
+    }
+}
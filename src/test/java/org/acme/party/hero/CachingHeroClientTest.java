@@ -0,0 +1,81 @@
+package org.acme.party.hero;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.smallrye.mutiny.Uni;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CachingHeroClientTest {
+
+    private final List<Hero> heroes = List.of(new Hero(1L, "Karlach", "Barbarian"));
+
+    private CachingHeroClient client;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        client = new CachingHeroClient();
+        client.delegate = Mockito.mock(GraphQLHeroClient.class);
+        client.registry = registry;
+        client.ttl = Duration.ofMinutes(5);
+        client.refreshAhead = Duration.ofMinutes(1);
+        client.init();
+    }
+
+    @Test
+    public void testSnapshotIsServedFromMemory() {
+        Mockito.when(client.delegate.allHeroes()).thenReturn(Uni.createFrom().item(heroes));
+
+        assertEquals(heroes, client.allHeroes().await().indefinitely());
+        assertEquals(heroes, client.allHeroes().await().indefinitely());
+
+        Mockito.verify(client.delegate, Mockito.times(1)).allHeroes();
+        assertEquals(1, registry.counter("hero.cache.requests", "result", "miss").count());
+        assertEquals(1, registry.counter("hero.cache.requests", "result", "hit").count());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneRequest() {
+        CompletableFuture<List<Hero>> response = new CompletableFuture<>();
+        Mockito.when(client.delegate.allHeroes()).thenReturn(Uni.createFrom().completionStage(response));
+
+        CompletableFuture<List<Hero>> first = client.allHeroes().subscribeAsCompletionStage();
+        CompletableFuture<List<Hero>> second = client.allHeroes().subscribeAsCompletionStage();
+        response.complete(heroes);
+
+        assertEquals(heroes, first.join());
+        assertEquals(heroes, second.join());
+        Mockito.verify(client.delegate, Mockito.times(1)).allHeroes();
+    }
+
+    @Test
+    public void testStaleSnapshotIsServedWhenBackendIsDown() {
+        client.ttl = Duration.ZERO;
+        client.refreshAhead = Duration.ZERO;
+        Mockito.when(client.delegate.allHeroes())
+                .thenReturn(Uni.createFrom().item(heroes))
+                .thenReturn(Uni.createFrom().failure(new IllegalStateException("camp-service down")));
+
+        assertEquals(heroes, client.allHeroes().await().indefinitely());
+        assertEquals(heroes, client.allHeroes().await().indefinitely());
+        assertEquals(1, registry.counter("hero.cache.requests", "result", "stale").count());
+        assertEquals(1, registry.counter("hero.cache.refreshes", "outcome", "failure").count());
+    }
+
+    @Test
+    public void testFailureWithoutSnapshotIsPropagated() {
+        Mockito.when(client.delegate.allHeroes())
+                .thenReturn(Uni.createFrom().failure(new IllegalStateException("camp-service down")));
+
+        assertThrows(IllegalStateException.class, () -> client.allHeroes().await().indefinitely());
+    }
+}
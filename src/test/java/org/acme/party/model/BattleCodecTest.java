@@ -0,0 +1,91 @@
+package org.acme.party.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.acme.party.entity.PartyMember;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BattleCodecTest {
+
+    @Test
+    public void testBattleEndRoundTrip() {
+        BattleEnd battleEnd = battleEnd();
+
+        byte[] payload = BattleCodec.encode(battleEnd);
+
+        assertTrue(BattleCodec.isBinary(payload));
+        assertEquals(battleEnd, BattleCodec.decodeEnd(payload));
+    }
+
+    @Test
+    public void testBattleRequestCarriesOnlyTheFighter() {
+        PartyMember partyMember = new PartyMember();
+        partyMember.id = 42L;
+        partyMember.userId = "alice";
+        partyMember.heroName = "Shadowheart";
+        partyMember.villain = "Raphael";
+        partyMember.health = 90L;
+        partyMember.weapon = "Nyrulna_Unfaded_Icon";
+        BattleRequest request = new BattleRequest();
+        request.id = UUID.randomUUID();
+        request.gameId = 7L;
+        request.partyMember = partyMember;
+
+        BattleRequest decoded = BattleCodec.decodeRequest(BattleCodec.encode(request));
+
+        assertEquals(request.id, decoded.id);
+        assertEquals(7L, decoded.gameId);
+        assertNull(decoded.isVictory);
+        assertEquals(42L, decoded.partyMember.id);
+        assertEquals("alice", decoded.partyMember.userId);
+        assertEquals("Shadowheart", decoded.partyMember.heroName);
+        assertEquals("Raphael", decoded.partyMember.villain);
+        assertEquals(90L, decoded.partyMember.health);
+        assertNull(decoded.partyMember.weapon);
+    }
+
+    @Test
+    public void testMissingFieldsStayNull() {
+        BattleEnd battleEnd = new BattleEnd();
+        battleEnd.partyMember = new Fighter(null, "bob", null, null, -5L);
+
+        assertEquals(battleEnd, BattleCodec.decodeEnd(BattleCodec.encode(battleEnd)));
+        assertEquals(new BattleEnd(), BattleCodec.decodeEnd(BattleCodec.encode(new BattleEnd())));
+    }
+
+    @Test
+    public void testTrailingFieldsOfLaterVersionsAreIgnored() {
+        BattleEnd battleEnd = battleEnd();
+        byte[] payload = BattleCodec.encode(battleEnd);
+        byte[] later = Arrays.copyOf(payload, payload.length + 3);
+        later[0] = BattleCodec.VERSION + 1;
+
+        assertEquals(battleEnd, BattleCodec.decodeEnd(later));
+    }
+
+    @Test
+    public void testJsonIsNotBinary() throws Exception {
+        byte[] json = new ObjectMapper().writeValueAsBytes(battleEnd());
+
+        assertFalse(BattleCodec.isBinary(json));
+        assertFalse(BattleCodec.isBinary(" {}".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(BattleCodec.encode(battleEnd()).length < json.length / 2);
+        assertThrows(IllegalArgumentException.class, () -> BattleCodec.decodeEnd(json));
+        assertThrows(IllegalArgumentException.class,
+                () -> BattleCodec.decodeEnd(Arrays.copyOf(BattleCodec.encode(battleEnd()), 20)));
+    }
+
+    static BattleEnd battleEnd() {
+        BattleEnd battleEnd = new BattleEnd();
+        battleEnd.id = UUID.randomUUID();
+        battleEnd.gameId = 1_000_000_000L;
+        battleEnd.isVictory = true;
+        battleEnd.partyMember = new Fighter(1_000_000_001L, "alice", "Karlach", "Kagha", 130L);
+        return battleEnd;
+    }
+}
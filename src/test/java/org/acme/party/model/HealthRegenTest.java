@@ -0,0 +1,76 @@
+package org.acme.party.model;
+
+import org.acme.party.entity.PartyMember;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HealthRegenTest {
+
+    public static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+    @Test
+    public void testRegeneratesPerElapsedPeriodUpToTheCap() {
+        HealthRegen regen = regen(T0);
+
+        assertEquals(40L, regen.health(40L, false, T0, T0));
+        assertEquals(40L, regen.health(40L, false, T0, T0.plusSeconds(59)));
+        assertEquals(41L, regen.health(40L, false, T0, T0.plusSeconds(60)));
+        assertEquals(70L, regen.health(40L, false, T0, T0.plus(Duration.ofMinutes(30)).plusSeconds(59)));
+        assertEquals(100L, regen.health(40L, false, T0, T0.plus(Duration.ofDays(1))));
+        // a clock going backwards does not cost any health
+        assertEquals(40L, regen.health(40L, false, T0, T0.minusSeconds(600)));
+    }
+
+    @Test
+    public void testOnlyIdleLivingMembersBelowTheCapRegenerate() {
+        HealthRegen regen = regen(T0);
+        Instant later = T0.plus(Duration.ofHours(1));
+
+        assertEquals(40L, regen.health(40L, true, T0, later));
+        assertEquals(0L, regen.health(0L, false, T0, later));
+        assertEquals(150L, regen.health(150L, false, T0, later));
+        assertEquals(40L, regen.health(40L, false, null, later));
+        assertNull(regen.health(null, false, T0, later));
+
+        regen.points = 0;
+        assertEquals(40L, regen.health(40L, false, T0, later));
+        assertEquals("health", regen.sql("?1"));
+    }
+
+    @Test
+    public void testApplyReLevelsWithoutMovingTheTimestamp() {
+        HealthRegen regen = regen(T0);
+        regen.cap = 200;
+        PartyMember partyMember = new PartyMember();
+        partyMember.health = 90L;
+        partyMember.level = 1;
+        partyMember.fighting = false;
+        partyMember.healthUpdatedAt = T0;
+
+        regen.apply(partyMember, T0.plus(Duration.ofMinutes(65)));
+
+        // one level at a time, even if the health is above the threshold of level 3
+        assertEquals(155L, partyMember.health);
+        assertEquals(2, partyMember.level);
+        assertEquals(T0, partyMember.healthUpdatedAt);
+    }
+
+    /**
+     * @param now the fixed time of the regeneration
+     * @return a regeneration of 1 health per minute up to 100, on a clock stopped at the given time
+     */
+    public static HealthRegen regen(Instant now) {
+        HealthRegen regen = new HealthRegen();
+        regen.points = 1;
+        regen.period = Duration.ofMinutes(1);
+        regen.cap = 100;
+        regen.clock = Clock.fixed(now, ZoneOffset.UTC);
+        return regen;
+    }
+}
@@ -0,0 +1,76 @@
+package org.acme.party.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LevelThresholdsTest {
+
+    private static final int SAMPLES = 10_000;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testLevelIsTheHighestThresholdReached() {
+        for (int i = 0; i < SAMPLES; i++) {
+            long health = randomHealth();
+            int level = LevelThresholds.levelFor(health);
+
+            assertTrue(level >= 1 && level <= LevelThresholds.MAX_LEVEL, "level " + level + " for health " + health);
+            assertTrue(level == 1 || health >= LevelThresholds.minHealth(level), "health " + health);
+            assertTrue(level == LevelThresholds.MAX_LEVEL || health < LevelThresholds.minHealth(level + 1), "health " + health);
+        }
+    }
+
+    @Test
+    public void testLevelIsMonotonicInHealth() {
+        for (int i = 0; i < SAMPLES; i++) {
+            long health = randomHealth();
+            long more = health + random.nextInt(200);
+            assertTrue(LevelThresholds.levelFor(health) <= LevelThresholds.levelFor(more), health + " <= " + more);
+        }
+    }
+
+    @Test
+    public void testLevelGoesUpOneLevelAtMost() {
+        for (int i = 0; i < SAMPLES; i++) {
+            int level = 1 + random.nextInt(LevelThresholds.MAX_LEVEL);
+            long health = randomHealth();
+            int next = LevelThresholds.nextLevel(level, health);
+
+            boolean reached = level < LevelThresholds.MAX_LEVEL && health >= LevelThresholds.minHealth(level + 1);
+            assertEquals(reached ? level + 1 : level, next, "level " + level + " health " + health);
+            assertTrue(next <= Math.max(level, LevelThresholds.levelFor(health)), "level " + level + " health " + health);
+        }
+        assertEquals(1, LevelThresholds.nextLevel(null, 0));
+        assertEquals(2, LevelThresholds.nextLevel(null, 1_000));
+    }
+
+    @Test
+    public void testRepeatedChangesReachTheLevelOfTheHealth() {
+        for (int i = 0; i < SAMPLES; i++) {
+            long health = randomHealth();
+            int level = 1;
+            for (int change = 1; change < LevelThresholds.MAX_LEVEL; change++) {
+                level = LevelThresholds.nextLevel(level, health);
+            }
+            assertEquals(LevelThresholds.levelFor(health), level, "health " + health);
+        }
+    }
+
+    @Test
+    public void testSqlHasOneBranchPerLevelBelowTheLast() {
+        String sql = LevelThresholds.sql("health + 10");
+        for (int level = 1; level < LevelThresholds.MAX_LEVEL; level++) {
+            assertTrue(sql.contains(" when " + level + " then " + LevelThresholds.minHealth(level + 1)), sql);
+        }
+        assertFalse(sql.contains(" when " + LevelThresholds.MAX_LEVEL + " then"), sql);
+        assertTrue(sql.startsWith("(coalesce(level, 1) + case when (health + 10) >="), sql);
+    }
+
+    private long randomHealth() {
+        return random.nextInt(700) - 50;
+    }
+}
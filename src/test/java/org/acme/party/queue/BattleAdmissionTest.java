@@ -0,0 +1,130 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BattleAdmissionTest {
+
+    private BattleAdmission admission;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        admission = new BattleAdmission();
+        admission.registry = registry;
+        admission.maxInFlight = 3;
+        admission.maxInFlightPerUser = 2;
+        admission.timeout = Duration.ofMinutes(2);
+        admission.init();
+    }
+
+    @Test
+    public void testCapsAreEnforcedUntilTheBattlesEnd() {
+        UUID first = UUID.randomUUID();
+        assertTrue(admission.tryAcquire(first, "alice"));
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "alice"));
+        assertFalse(admission.tryAcquire(UUID.randomUUID(), "alice"));
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "bob"));
+        assertFalse(admission.tryAcquire(UUID.randomUUID(), "carol"));
+        assertEquals(3, admission.inFlight());
+
+        admission.release(first);
+        // a redelivered result releases nothing
+        admission.release(first);
+        assertEquals(2, admission.inFlight());
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "alice"));
+
+        assertEquals(1, registry.counter("battles.admission.shed", "cap", "user").count());
+        assertEquals(1, registry.counter("battles.admission.shed", "cap", "global").count());
+        assertEquals(3, registry.get("battles.admission.in-flight").gauge().value());
+    }
+
+    @Test
+    public void testBattlesWithoutResultExpire() {
+        long start = System.nanoTime();
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "alice"));
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "alice"));
+
+        admission.expire(start);
+        assertEquals(2, admission.inFlight());
+
+        admission.expire(start + Duration.ofMinutes(3).toNanos());
+        assertEquals(0, admission.inFlight());
+        assertEquals(2, registry.counter("battles.admission.expired").count());
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "alice"));
+    }
+
+    @Test
+    public void testBattlesEndedOnAnotherReplicaAreReleased() {
+        UUID ended = UUID.randomUUID();
+        UUID fighting = UUID.randomUUID();
+        assertTrue(admission.tryAcquire(ended, "alice"));
+        assertTrue(admission.tryAcquire(fighting, "alice"));
+        long afterAdmission = System.nanoTime();
+        UUID recent = UUID.randomUUID();
+        assertTrue(admission.tryAcquire(recent, "bob"));
+
+        // the recent battle is left out, its fight may not be committed yet
+        List<UUID> checked = admission.admittedBefore(afterAdmission);
+        assertEquals(Set.of(ended, fighting), Set.copyOf(checked));
+
+        // the result of the first battle was settled by another replica
+        admission.reconciled(checked, Set.of(fighting));
+        assertEquals(2, admission.inFlight());
+        assertEquals(1, registry.counter("battles.admission.reconciled").count());
+        assertTrue(admission.tryAcquire(UUID.randomUUID(), "alice"));
+
+        // its result arriving here afterwards releases nothing
+        admission.release(ended);
+        assertEquals(3, admission.inFlight());
+    }
+
+    @Test
+    public void testConcurrentFightsNeverExceedTheCaps() throws Exception {
+        admission.maxInFlight = 50;
+        admission.maxInFlightPerUser = 5;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        String userId = "user-" + ThreadLocalRandom.current().nextInt(20);
+                        UUID battleId = UUID.randomUUID();
+                        if (admission.tryAcquire(battleId, userId)) {
+                            assertTrue(admission.inFlight() <= 50);
+                            admission.release(battleId);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+            assertEquals(0, admission.inFlight());
+            // every per-user counter is back to zero
+            admission.maxInFlight = 100;
+            for (int u = 0; u < 20; u++) {
+                String userId = "user-" + u;
+                for (int i = 0; i < 5; i++) {
+                    assertTrue(admission.tryAcquire(UUID.randomUUID(), userId), userId);
+                }
+                assertFalse(admission.tryAcquire(UUID.randomUUID(), userId), userId);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
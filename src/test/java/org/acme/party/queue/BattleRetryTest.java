@@ -0,0 +1,178 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.arc.ClientProxy;
+import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.vertx.RunOnVertxContext;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.reactive.messaging.MutinyEmitter;
+import io.smallrye.reactive.messaging.kafka.KafkaRecord;
+import io.smallrye.reactive.messaging.kafka.api.OutgoingKafkaRecordMetadata;
+import jakarta.inject.Inject;
+import org.acme.party.entity.ParkedBattle;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.eq;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class BattleRetryTest {
+
+    private static final byte[] PAYLOAD = {1, 2, 3};
+    private static final Map<String, String> HEADERS = Map.of("x-correlation-id", "abc");
+
+    @Inject
+    BattleRetry battleRetry;
+
+    @Inject
+    MeterRegistry registry;
+
+    private BattleRetry retry;
+    private BattleRequestProcessor processor;
+    private MutinyEmitter<byte[]> deadLetterEmitter;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        // the mocks replace the collaborators of the bean itself, and are put back once the test is over
+        retry = ClientProxy.unwrap(battleRetry);
+        processor = retry.processor;
+        deadLetterEmitter = retry.deadLetterEmitter;
+        retry.processor = Mockito.mock(BattleRequestProcessor.class);
+        retry.deadLetterEmitter = Mockito.mock(MutinyEmitter.class);
+        Mockito.when(retry.processor.retry(any(), any()))
+                .thenReturn(Uni.createFrom().failure(new IllegalStateException("lane down")));
+        Mockito.when(retry.deadLetterEmitter.sendMessage(any(Message.class))).thenReturn(Uni.createFrom().voidItem());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        retry.processor = processor;
+        retry.deadLetterEmitter = deadLetterEmitter;
+    }
+
+    @Test
+    public void testBackoffDoublesUpToTheMax() {
+        BattleRetry backoff = new BattleRetry();
+        backoff.initialBackoff = Duration.ofSeconds(1);
+        backoff.maxBackoff = Duration.ofSeconds(10);
+
+        assertEquals(Duration.ofSeconds(1), backoff.backoff(1));
+        assertEquals(Duration.ofSeconds(2), backoff.backoff(2));
+        assertEquals(Duration.ofSeconds(4), backoff.backoff(3));
+        assertEquals(Duration.ofSeconds(8), backoff.backoff(4));
+        assertEquals(Duration.ofSeconds(10), backoff.backoff(5));
+        assertEquals(Duration.ofSeconds(10), backoff.backoff(100));
+    }
+
+    @Test
+    @RunOnVertxContext
+    @SuppressWarnings("unchecked")
+    public void testFailedRecordsAreParkedAndAcked(TransactionalUniAsserter asserter) {
+        String key = "park-" + UUID.randomUUID();
+        KafkaRecord<String, byte[]> record = Mockito.mock(KafkaRecord.class);
+        Mockito.when(record.getKey()).thenReturn(key);
+        Mockito.when(record.getPayload()).thenReturn(PAYLOAD);
+        Mockito.when(record.getHeaders()).thenReturn(new RecordHeaders()
+                .add("x-correlation-id", "abc".getBytes(StandardCharsets.UTF_8)));
+        double parked = registry.counter("battles.end.parked").count();
+
+        asserter.execute(() -> retry.park(Map.of(record, new IllegalStateException("lane down"))));
+        asserter.execute(() -> {
+            Mockito.verify(record).ack();
+            assertEquals(parked + 1, registry.counter("battles.end.parked").count());
+        });
+        asserter.assertEquals(() -> ParkedBattle.<ParkedBattle>find("recordKey", key).firstResult()
+                .map(battle -> List.of(battle.headersAsMap(), battle.dead)), List.of(HEADERS, false));
+
+        asserter.execute(() -> ParkedBattle.delete("recordKey", key));
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testRecordIsDeletedOnceApplied(TransactionalUniAsserter asserter) {
+        ParkedBattle[] battle = new ParkedBattle[1];
+        double applied = registry.counter("battles.end.retries", "outcome", "applied").count();
+        Mockito.when(retry.processor.retry(any(), any())).thenReturn(Uni.createFrom().voidItem());
+
+        asserter.execute(() -> parked(1).persist().invoke(persisted -> battle[0] = (ParkedBattle) persisted));
+        asserter.execute(() -> retry.retry(battle[0]));
+        asserter.execute(() -> {
+            Mockito.verify(retry.processor).retry(aryEq(PAYLOAD), eq(HEADERS));
+            assertEquals(applied + 1, registry.counter("battles.end.retries", "outcome", "applied").count());
+        });
+        asserter.assertNull(() -> ParkedBattle.findById(battle[0].id));
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testRecordIsDeadLetteredAfterTheLastAttempt(TransactionalUniAsserter asserter) {
+        ParkedBattle[] early = new ParkedBattle[1];
+        ParkedBattle[] last = new ParkedBattle[1];
+        double deadLettered = registry.counter("battles.end.dead-lettered").count();
+
+        asserter.execute(() -> parked(1).persist().invoke(persisted -> early[0] = (ParkedBattle) persisted));
+        asserter.execute(() -> parked(retry.maxAttempts - 1).persist().invoke(persisted -> last[0] = (ParkedBattle) persisted));
+
+        // a failed attempt before the last one is scheduled again after the back-off
+        Instant beforeRetry = Instant.now();
+        asserter.execute(() -> retry.retry(early[0]));
+        asserter.assertEquals(() -> ParkedBattle.<ParkedBattle>findById(early[0].id)
+                .map(battle -> List.of(battle.attempts, battle.dead)), List.of(2, false));
+        asserter.assertTrue(() -> ParkedBattle.<ParkedBattle>findById(early[0].id)
+                .map(battle -> !battle.nextAttemptAt.isBefore(beforeRetry.plus(retry.backoff(2)))));
+        asserter.execute(() -> Mockito.verifyNoInteractions(retry.deadLetterEmitter));
+
+        // the last one dead-letters the record, with the cause of the failure
+        asserter.execute(() -> retry.retry(last[0]));
+        asserter.assertEquals(() -> ParkedBattle.<ParkedBattle>findById(last[0].id)
+                        .map(battle -> List.of(battle.attempts, battle.dead, battle.failureClass)),
+                List.of(retry.maxAttempts, true, IllegalStateException.class.getName()));
+        asserter.execute(() -> {
+            @SuppressWarnings("unchecked")
+            ArgumentCaptor<Message<byte[]>> message = ArgumentCaptor.forClass(Message.class);
+            Mockito.verify(retry.deadLetterEmitter).sendMessage(message.capture());
+            assertArrayEquals(PAYLOAD, message.getValue().getPayload());
+            Headers headers = message.getValue().getMetadata(OutgoingKafkaRecordMetadata.class).orElseThrow().getHeaders();
+            assertEquals("abc", header(headers, "x-correlation-id"));
+            assertEquals("lane down", header(headers, BattleRetry.REASON));
+            assertEquals(IllegalStateException.class.getName(), header(headers, BattleRetry.CAUSE));
+            assertEquals(String.valueOf(retry.maxAttempts), header(headers, BattleRetry.ATTEMPTS));
+            assertEquals(deadLettered + 1, registry.counter("battles.end.dead-lettered").count());
+        });
+
+        asserter.execute(() -> ParkedBattle.delete("id in ?1", List.of(early[0].id, last[0].id)));
+    }
+
+    private static ParkedBattle parked(int attempts) {
+        // not due, so that only the test makes its attempts
+        ParkedBattle battle = ParkedBattle.of("retry-" + UUID.randomUUID(), PAYLOAD, HEADERS,
+                new IllegalStateException("lane down"), Instant.now().plus(Duration.ofHours(1)));
+        battle.attempts = attempts;
+        return battle;
+    }
+
+    private static String header(Headers headers, String key) {
+        return new String(headers.lastHeader(key).value(), StandardCharsets.UTF_8);
+    }
+}
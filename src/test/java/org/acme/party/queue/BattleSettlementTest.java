@@ -0,0 +1,171 @@
+package org.acme.party.queue;
+
+import io.quarkus.arc.ClientProxy;
+import io.quarkus.test.hibernate.reactive.panache.TransactionalUniAsserter;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.vertx.RunOnVertxContext;
+import jakarta.inject.Inject;
+import org.acme.party.entity.Game;
+import org.acme.party.entity.LeaderboardEntry;
+import org.acme.party.entity.PartyMember;
+import org.acme.party.model.BattleEnd;
+import org.acme.party.model.Fighter;
+import org.acme.party.model.Standing;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class BattleSettlementTest {
+
+    @Inject
+    BattleSettlement battleSettlement;
+
+    @Test
+    @RunOnVertxContext
+    public void testBatchIsSettledInOneStatement(TransactionalUniAsserter asserter) {
+        String alice = "alice-" + UUID.randomUUID();
+        PartyMember[] members = new PartyMember[4];
+        Long[] gameId = new Long[1];
+
+        asserter.execute(() -> member(alice, true, 100).persist().invoke(member -> members[0] = (PartyMember) member));
+        asserter.execute(() -> member(alice, true, 100).persist().invoke(member -> members[1] = (PartyMember) member));
+        asserter.execute(() -> member(alice, false, 100).persist().invoke(member -> members[2] = (PartyMember) member));
+        asserter.execute(() -> member(alice, false, 25).persist().invoke(member -> members[3] = (PartyMember) member));
+        asserter.execute(() -> game(alice).persist().invoke(game -> gameId[0] = ((Game) game).id));
+
+        // the first member fights three times: it keeps the health of its last battle, and its best one raises it one level
+        asserter.assertEquals(() -> battleSettlement.settle(List.of(
+                        battleEnd(members[0], gameId[0], false, 40),
+                        battleEnd(members[0], gameId[0], true, 160),
+                        battleEnd(members[1], gameId[0], true, 120),
+                        battleEnd(members[0], gameId[0], false, 90))),
+                List.of(new Standing(alice, 2, 2)));
+
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(members[0].id)
+                .map(member -> List.of(member.health, (long) member.level, member.fighting ? 1L : 0L)), List.of(90L, 2L, 0L));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(members[1].id)
+                .map(member -> List.of(member.health, (long) member.level)), List.of(120L, 2L));
+        // two losses: the members that did not fight lose up to 20 health, not going below 20
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(members[2].id).map(member -> member.health), 80L);
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(members[3].id).map(member -> member.health), 15L);
+        asserter.assertEquals(() -> Game.<Game>findById(gameId[0]).map(game -> List.of(game.won, game.lost)), List.of(2, 2));
+
+        // back in a fight: a missing member or a missing game skips its battle, the other battles of the batch are settled
+        asserter.execute(() -> PartyMember.update("fighting = true WHERE id in ?1", List.of(members[0].id, members[1].id)));
+        asserter.assertEquals(() -> battleSettlement.settle(List.of(battleEnd(new PartyMember(), gameId[0], true, 100))),
+                List.of());
+        asserter.assertEquals(() -> battleSettlement.settle(List.of(
+                        battleEnd(members[1], -1L, true, 130),
+                        battleEnd(members[0], gameId[0], true, 95))),
+                List.of(new Standing(alice, 3, 2)));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(members[1].id).map(member -> member.health), 130L);
+        asserter.assertEquals(() -> Game.<Game>findById(gameId[0]).map(game -> List.of(game.won, game.lost)), List.of(3, 2));
+
+        asserter.execute(() -> PartyMember.delete("userId", alice));
+        asserter.execute(() -> Game.delete("userId", alice));
+        asserter.execute(() -> LeaderboardEntry.delete("userId", alice));
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testLateResultsLeaveTheMemberAsItIs(TransactionalUniAsserter asserter) {
+        testLateResultsLeaveTheMemberAsItIs(asserter, true);
+    }
+
+    @Test
+    @RunOnVertxContext
+    public void testLateResultsLeaveTheMemberAsItIsInStages(TransactionalUniAsserter asserter) {
+        testLateResultsLeaveTheMemberAsItIs(asserter, false);
+    }
+
+    private void testLateResultsLeaveTheMemberAsItIs(TransactionalUniAsserter asserter, boolean singleStatement) {
+        String bob = "bob-" + UUID.randomUUID();
+        PartyMember[] member = new PartyMember[2];
+        Long[] gameId = new Long[1];
+        BattleSettlement settlement = ClientProxy.unwrap(battleSettlement);
+        boolean configured = settlement.singleStatement;
+
+        asserter.execute(() -> settlement.singleStatement = singleStatement);
+        asserter.execute(() -> {
+            PartyMember partyMember = member(bob, true, 100);
+            partyMember.battleId = UUID.randomUUID();
+            return partyMember.persist().invoke(persisted -> member[0] = (PartyMember) persisted);
+        });
+        asserter.execute(() -> member(bob, true, 100).persist().invoke(persisted -> member[1] = (PartyMember) persisted));
+        asserter.execute(() -> game(bob).persist().invoke(game -> gameId[0] = ((Game) game).id));
+
+        // the result of an older battle, e.g. retried once parked, counts for the game but does not end the fight
+        asserter.assertEquals(() -> settlement.settle(List.of(battleEnd(member[0], gameId[0], true, 10))),
+                List.of(new Standing(bob, 1, 0)));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(member[0].id)
+                .map(found -> List.of(found.health, found.fighting ? 1L : 0L)), List.of(100L, 1L));
+
+        // a late loss does not make its member one of the fighters of the batch: it pays the penalty like the others
+        asserter.assertEquals(() -> settlement.settle(List.of(
+                        battleEnd(member[0], gameId[0], false, 10),
+                        battleEnd(member[1], gameId[0], true, 70))),
+                List.of(new Standing(bob, 2, 1)));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(member[0].id)
+                .map(found -> List.of(found.health, found.fighting ? 1L : 0L)), List.of(90L, 1L));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(member[1].id)
+                .map(found -> List.of(found.health, found.fighting ? 1L : 0L)), List.of(70L, 0L));
+
+        asserter.assertEquals(() -> settlement.settle(List.of(battleEnd(member[0], member[0].battleId, gameId[0], false, 60))),
+                List.of(new Standing(bob, 2, 2)));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(member[0].id)
+                .map(found -> Arrays.asList(found.health, found.fighting ? 1L : 0L, found.battleId)), Arrays.asList(60L, 0L, null));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(member[1].id).map(found -> found.health), 60L);
+
+        // the same member settled again, it is no longer fighting
+        asserter.assertEquals(() -> settlement.settle(List.of(battleEnd(member[0], member[0].battleId, gameId[0], true, 5))),
+                List.of(new Standing(bob, 3, 2)));
+        asserter.assertEquals(() -> PartyMember.<PartyMember>findById(member[0].id).map(found -> found.health), 60L);
+
+        asserter.execute(() -> settlement.singleStatement = configured);
+        asserter.execute(() -> PartyMember.delete("userId", bob));
+        asserter.execute(() -> Game.delete("userId", bob));
+        asserter.execute(() -> LeaderboardEntry.delete("userId", bob));
+    }
+
+    private static PartyMember member(String userId, boolean fighting, long health) {
+        PartyMember partyMember = new PartyMember();
+        partyMember.userId = userId;
+        partyMember.heroName = "Karlach";
+        partyMember.fighting = fighting;
+        partyMember.villain = fighting ? "Orin" : null;
+        partyMember.health = health;
+        partyMember.level = 1;
+        return partyMember;
+    }
+
+    static Game game(String userId) {
+        Game game = new Game();
+        game.userId = userId;
+        game.over = false;
+        game.won = 0;
+        game.lost = 0;
+        game.created = new Date();
+        return game;
+    }
+
+    private static BattleEnd battleEnd(PartyMember member, Long gameId, boolean victory, long health) {
+        return battleEnd(member, UUID.randomUUID(), gameId, victory, health);
+    }
+
+    private static BattleEnd battleEnd(PartyMember member, UUID battleId, Long gameId, boolean victory, long health) {
+        BattleEnd battleEnd = new BattleEnd();
+        battleEnd.id = battleId;
+        battleEnd.partyMember = new Fighter(member.id != null ? member.id : -1L, member.userId != null ? member.userId : "nobody",
+                "Karlach", null, health);
+        battleEnd.gameId = gameId;
+        battleEnd.isVictory = victory;
+        return battleEnd;
+    }
+}
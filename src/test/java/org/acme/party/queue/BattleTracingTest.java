@@ -0,0 +1,96 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import org.acme.party.model.BattleEnd;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BattleTracingTest {
+
+    private static final SpanContext FIGHT = SpanContext.create("0af7651916cd43dd8448eb211c80319c",
+            "b7ad6b7169203331", TraceFlags.getSampled(), TraceState.getDefault());
+
+    private BattleTracing tracing;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        OpenTelemetry openTelemetry = OpenTelemetry.propagating(
+                ContextPropagators.create(W3CTraceContextPropagator.getInstance()));
+        registry = new SimpleMeterRegistry();
+        tracing = new BattleTracing();
+        tracing.openTelemetry = openTelemetry;
+        tracing.tracer = openTelemetry.getTracer("test");
+        tracing.registry = registry;
+        tracing.init();
+    }
+
+    @Test
+    public void testFightContextCrossesTheHeaders() {
+        UUID battleId = UUID.randomUUID();
+        Map<String, String> fightHeaders;
+        try (Scope ignored = Context.root().with(Span.wrap(FIGHT)).makeCurrent()) {
+            fightHeaders = tracing.fightHeaders(battleId);
+        }
+        assertEquals(battleId.toString(), fightHeaders.get(BattleTracing.CORRELATION_ID));
+        assertEquals(FIGHT.getTraceId(), Span.fromContext(tracing.extract(fightHeaders)).getSpanContext().getTraceId());
+
+        // as copied by the battle service on the battle result
+        RecordHeaders headers = new RecordHeaders();
+        fightHeaders.forEach((key, value) -> headers.add(key, value.getBytes(StandardCharsets.UTF_8)));
+        BattleTracing.Trace trace = tracing.trace(headers, battleEnd(UUID.randomUUID()));
+
+        assertEquals(battleId.toString(), trace.correlationId());
+        assertEquals(FIGHT.getTraceId(), Span.fromContext(trace.context()).getSpanContext().getTraceId());
+        assertEquals(FIGHT.getSpanId(), Span.fromContext(trace.context()).getSpanContext().getSpanId());
+        assertNotNull(trace.fightStartedAt());
+    }
+
+    @Test
+    public void testBattleIdStandsInForMissingHeaders() {
+        UUID battleId = UUID.randomUUID();
+        BattleTracing.Trace trace = tracing.trace(new RecordHeaders(), battleEnd(battleId));
+
+        assertEquals(battleId.toString(), trace.correlationId());
+        assertFalse(Span.fromContext(trace.context()).getSpanContext().isValid());
+        assertNull(trace.fightStartedAt());
+    }
+
+    @Test
+    public void testLatencyIsRecordedByOutcome() {
+        Instant startedAt = Instant.now().minusSeconds(2);
+        tracing.recordLatency(new BattleTracing.Trace(Context.root(), "1", startedAt), "victory");
+        tracing.recordLatency(new BattleTracing.Trace(Context.root(), "2", startedAt), "defeat");
+        tracing.recordLatency(new BattleTracing.Trace(Context.root(), "3", null), "defeat");
+
+        assertEquals(1, registry.timer("battles.latency", "outcome", "victory").count());
+        assertTrue(registry.timer("battles.latency", "outcome", "victory").totalTime(TimeUnit.SECONDS) >= 2);
+        assertEquals(1, registry.timer("battles.latency", "outcome", "defeat").count());
+        assertEquals(0, registry.timer("battles.latency", "outcome", "failed").count());
+    }
+
+    private static BattleEnd battleEnd(UUID id) {
+        BattleEnd battleEnd = new BattleEnd();
+        battleEnd.id = id;
+        battleEnd.isVictory = true;
+        return battleEnd;
+    }
+}
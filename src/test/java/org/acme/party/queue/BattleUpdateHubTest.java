@@ -0,0 +1,71 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.smallrye.mutiny.helpers.test.AssertSubscriber;
+import org.acme.party.model.BattleUpdate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BattleUpdateHubTest {
+
+    private BattleUpdateHub hub;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        hub = new BattleUpdateHub();
+        hub.registry = registry;
+        hub.bufferSize = 3;
+        hub.init();
+    }
+
+    @Test
+    public void testUpdatesAreRoutedToTheirUser() {
+        AssertSubscriber<BattleUpdate> alice = hub.subscribe("alice").subscribe().withSubscriber(AssertSubscriber.create(10));
+        AssertSubscriber<BattleUpdate> bob = hub.subscribe("bob").subscribe().withSubscriber(AssertSubscriber.create(10));
+
+        hub.publish(update("alice", "[WON] Karlach"));
+        hub.publish(update("carol", "[LOST] Gale"));
+
+        assertEquals(List.of(update("alice", "[WON] Karlach")), alice.getItems());
+        assertEquals(List.of(), bob.getItems());
+    }
+
+    @Test
+    public void testSlowSubscriberLosesTheOldestUpdates() {
+        AssertSubscriber<BattleUpdate> slow = hub.subscribe("alice").subscribe().withSubscriber(AssertSubscriber.create(0));
+
+        for (int i = 0; i < 5; i++) {
+            hub.publish(update("alice", "update " + i));
+        }
+        slow.request(10);
+
+        assertEquals(List.of(update("alice", "update 2"), update("alice", "update 3"), update("alice", "update 4")),
+                slow.getItems());
+        assertEquals(2, registry.counter("battles.update.events", "outcome", "dropped").count());
+    }
+
+    @Test
+    public void testCancelledSubscriberIsRemoved() {
+        AssertSubscriber<BattleUpdate> alice = hub.subscribe("alice").subscribe().withSubscriber(AssertSubscriber.create(10));
+        assertEquals(1, registry.get("battles.update.subscribers").gauge().value());
+
+        alice.cancel();
+        hub.publish(update("alice", "[WON] Karlach"));
+
+        assertEquals(0, registry.get("battles.update.subscribers").gauge().value());
+        assertEquals(List.of(), alice.getItems());
+    }
+
+    private static BattleUpdate update(String user, String message) {
+        BattleUpdate update = new BattleUpdate();
+        update.setUser(user);
+        update.setMessage(message);
+        return update;
+    }
+}
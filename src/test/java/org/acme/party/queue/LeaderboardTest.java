@@ -0,0 +1,59 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.acme.party.model.Standing;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LeaderboardTest {
+
+    private Leaderboard leaderboard;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        leaderboard = new Leaderboard();
+        leaderboard.registry = registry;
+        leaderboard.init();
+    }
+
+    @Test
+    public void testUsersAreRankedByVictoriesThenLosses() {
+        leaderboard.apply(List.of(new Standing("alice", 3, 4), new Standing("bob", 5, 0), new Standing("carol", 3, 1)));
+
+        assertEquals(List.of(new Standing("bob", 5, 0), new Standing("carol", 3, 1)), leaderboard.top(2));
+        assertEquals(new Standing("alice", 3, 4), leaderboard.of("alice"));
+        assertEquals(new Standing("dave", 0, 0), leaderboard.of("dave"));
+
+        leaderboard.apply(List.of(new Standing("alice", 6, 4)));
+
+        assertEquals(List.of(new Standing("alice", 6, 4), new Standing("bob", 5, 0), new Standing("carol", 3, 1)),
+                leaderboard.top(10));
+        assertEquals(3, registry.get("battles.leaderboard.users").gauge().value());
+    }
+
+    @Test
+    public void testOlderTotalsAreIgnored() {
+        leaderboard.apply(List.of(new Standing("alice", 4, 2)));
+        leaderboard.apply(List.of(new Standing("alice", 3, 2)));
+
+        assertEquals(List.of(new Standing("alice", 4, 2)), leaderboard.top(10));
+    }
+
+    @Test
+    public void testRefreshReplacesTheRanking() {
+        leaderboard.apply(List.of(new Standing("alice", 4, 2), new Standing("bob", 1, 0)));
+
+        // as loaded from the table: carol was settled by another replica, a rebuild corrected alice and dropped bob
+        leaderboard.replaceAll(List.of(new Standing("alice", 3, 2), new Standing("carol", 5, 5)));
+
+        assertEquals(List.of(new Standing("carol", 5, 5), new Standing("alice", 3, 2)), leaderboard.top(10));
+        assertEquals(new Standing("bob", 0, 0), leaderboard.of("bob"));
+        assertEquals(2, registry.get("battles.leaderboard.users").gauge().value());
+    }
+}
@@ -0,0 +1,76 @@
+package org.acme.party.queue;
+
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.vertx.VertxContextSupport;
+import io.smallrye.mutiny.Uni;
+import jakarta.inject.Inject;
+import jakarta.persistence.OptimisticLockException;
+import org.acme.party.entity.Game;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.hibernate.StaleObjectStateException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class OptimisticRetryTest {
+
+    private static final int WRITERS = 20;
+
+    @Inject
+    OptimisticRetry optimisticRetry;
+
+    @Test
+    public void testConcurrentReadModifyWriteLosesNoUpdate() throws Throwable {
+        Game game = VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> BattleSettlementTest.game("optimistic").persist()));
+
+        List<Uni<Boolean>> writers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            // read-modify-write without any lock: only the version check prevents lost increments
+            writers.add(optimisticRetry.withTransaction("test", () -> Game.<Game>findById(game.id)
+                            .invoke(g -> g.won = g.won + 1)
+                            .replaceWith(true))
+                    .onFailure(OptimisticRetry::isConflict).recoverWithItem(false));
+        }
+        List<Boolean> outcomes = Uni.join().all(writers).andFailFast().await().atMost(Duration.ofMinutes(1));
+        long succeeded = outcomes.stream().filter(Boolean::booleanValue).count();
+
+        Game result = VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withSession(() -> Game.<Game>findById(game.id)));
+        assertTrue(succeeded > 0);
+        assertEquals(succeeded, result.won.longValue());
+        assertEquals(succeeded, result.version.longValue());
+
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(Game::deleteAll));
+    }
+
+    @Test
+    public void testBulkUpdateBumpsVersion() throws Throwable {
+        Game game = VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withTransaction(() -> BattleSettlementTest.game("optimistic").persist()));
+
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(() -> Game.recordResults(game.id, 1, 0)));
+
+        Game result = VertxContextSupport.subscribeAndAwait(() ->
+                Panache.withSession(() -> Game.<Game>findById(game.id)));
+        assertEquals(game.version + 1, result.version.longValue());
+
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(Game::deleteAll));
+    }
+
+    @Test
+    public void testIsConflict() {
+        assertTrue(OptimisticRetry.isConflict(new OptimisticLockException()));
+        assertTrue(OptimisticRetry.isConflict(new CompletionException(new StaleObjectStateException("Game", 1L))));
+        assertFalse(OptimisticRetry.isConflict(new IllegalStateException("Game with ID 1 not found")));
+    }
+}
@@ -0,0 +1,97 @@
+package org.acme.party.queue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.context.Context;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.reactive.messaging.MutinyEmitter;
+import io.vertx.core.Vertx;
+import org.acme.party.entity.OutboxMessage;
+import org.acme.party.model.BattleRequest;
+import org.acme.party.model.WireFormat;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+public class OutboxRelayTest {
+
+    private Vertx vertx;
+    private OutboxRelay relay;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        vertx = Vertx.vertx();
+        registry = new SimpleMeterRegistry();
+        relay = new OutboxRelay();
+        relay.vertx = vertx;
+        relay.registry = registry;
+        relay.format = WireFormat.JSON;
+        relay.batchSize = 3;
+        relay.battleTracing = Mockito.mock(BattleTracing.class);
+        Mockito.when(relay.battleTracing.extract(any())).thenReturn(Context.root());
+        relay.battleRequestEmitter = Mockito.mock(MutinyEmitter.class);
+        relay.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        vertx.close();
+    }
+
+    @Test
+    public void testOnlyConfirmedMessagesAreCounted() throws Exception {
+        Mockito.when(relay.battleRequestEmitter.sendMessage(any(Message.class)))
+                .thenReturn(Uni.createFrom().voidItem())
+                .thenReturn(Uni.createFrom().failure(new IllegalStateException("broker down")))
+                .thenReturn(Uni.createFrom().voidItem());
+        List<OutboxMessage> messages = messages(3);
+
+        // a full batch with a missing confirm must not be drained again straight away
+        assertEquals(2, publish(messages));
+        assertNotNull(messages.get(0).sentAt);
+        assertNull(messages.get(1).sentAt);
+        assertNotNull(messages.get(2).sentAt);
+        assertEquals(2.0, registry.counter("battles.outbox.messages", "outcome", "sent").count());
+        assertEquals(1.0, registry.counter("battles.outbox.messages", "outcome", "failed").count());
+    }
+
+    @Test
+    public void testNothingConfirmedWhileTheBrokerIsDown() throws Exception {
+        Mockito.when(relay.battleRequestEmitter.sendMessage(any(Message.class)))
+                .thenReturn(Uni.createFrom().failure(new IllegalStateException("broker down")));
+        List<OutboxMessage> messages = messages(3);
+
+        assertEquals(0, publish(messages));
+        assertTrue(messages.stream().allMatch(message -> message.sentAt == null));
+    }
+
+    private int publish(List<OutboxMessage> messages) throws Exception {
+        CompletableFuture<Integer> confirmed = new CompletableFuture<>();
+        vertx.getOrCreateContext().runOnContext(ignored -> relay.publish(messages)
+                .subscribe().with(confirmed::complete, confirmed::completeExceptionally));
+        return confirmed.get(10, TimeUnit.SECONDS);
+    }
+
+    private static List<OutboxMessage> messages(int count) {
+        List<OutboxMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BattleRequest request = new BattleRequest();
+            request.id = UUID.randomUUID();
+            messages.add(OutboxMessage.of(OutboxRelay.BATTLES_REQUEST, request, Map.of()));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,99 @@
+package org.acme.party.rest;
+
+import io.quarkus.test.common.http.TestHTTPEndpoint;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusMock;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.RestAssured;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.sqlclient.Pool;
+import io.vertx.mutiny.sqlclient.Tuple;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.SecurityContext;
+import org.acme.party.hero.GraphQLHeroClient;
+import org.acme.party.hero.Hero;
+import org.acme.party.testprofile.profile.LocalProfile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.net.URL;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * party/availability on a large party member table: only the hero IDs of the caller are read, through the
+ * (userId, heroId) index, so the cost does not depend on the members of the other users. The response times are
+ * measured by {@link org.acme.party.benchmark.AvailabilityBenchmarkTest}.
+ */
+@TestProfile(LocalProfile.class)
+@QuarkusTest
+public class PartyMemberAvailabilityTest {
+
+    private static final int HEROES = 50;
+    private static final int OWNED = 10;
+    private static final int ROWS = 100_000;
+    // far above the hibernate sequence, so that the seeded rows never collide with persisted entities
+    private static final long ID_OFFSET = 2_000_000_000L;
+
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("availability")
+    URL availability;
+
+    @Inject
+    Pool client;
+
+    @AfterEach
+    public void tearDown() {
+        client.preparedQuery("DELETE FROM PartyMember WHERE id > $1").execute(Tuple.of(ID_OFFSET))
+                .await().indefinitely();
+    }
+
+    @Test
+    public void testOnlyTheCallersHeroesAreReadThroughTheIndex() {
+        String userId = "availability-" + UUID.randomUUID();
+        List<Hero> heroes = new ArrayList<>();
+        for (long id = 1; id <= HEROES; id++) {
+            heroes.add(new Hero(id, "hero-" + id, "Fighter"));
+        }
+        GraphQLHeroClient heroClient = Mockito.mock(GraphQLHeroClient.class);
+        Mockito.when(heroClient.allHeroes()).thenReturn(Uni.createFrom().item(heroes));
+        Principal principal = Mockito.mock(Principal.class);
+        Mockito.when(principal.getName()).thenReturn(userId);
+        SecurityContext context = Mockito.mock(SecurityContext.class);
+        Mockito.when(context.getUserPrincipal()).thenReturn(principal);
+        QuarkusMock.installMockForType(heroClient, GraphQLHeroClient.class);
+        QuarkusMock.installMockForType(context, SecurityContext.class);
+
+        // the caller owns the first OWNED heroes, every other row belongs to someone else and owns any hero
+        client.preparedQuery("INSERT INTO PartyMember (id, userId, heroId, health, level, fighting, version) "
+                        + "SELECT $1 + g, CASE WHEN g <= $3 THEN $2 ELSE 'user-' || (g % 1000) END, "
+                        + "1 + (g % $4), 100, 1, false, 0 FROM generate_series(1, $5) g")
+                .execute(Tuple.of(ID_OFFSET, userId, OWNED, HEROES, ROWS))
+                .await().indefinitely();
+        client.query("ANALYZE PartyMember").execute().await().indefinitely();
+
+        Hero[] available = RestAssured.given()
+                .when().get(availability)
+                .then().statusCode(200)
+                .extract().as(Hero[].class);
+        long[] owned = LongStream.rangeClosed(1, OWNED).map(g -> 1 + (g % HEROES)).sorted().toArray();
+        assertEquals(HEROES - OWNED, available.length);
+        assertTrue(Arrays.stream(available).noneMatch(hero -> Arrays.binarySearch(owned, hero.id) >= 0));
+
+        // the plan of PartyMember.heroIdsOf never scans the table
+        StringBuilder plan = new StringBuilder();
+        client.query("EXPLAIN SELECT heroId FROM PartyMember WHERE userId = '" + userId + "' AND heroId IS NOT NULL")
+                .execute().await().indefinitely()
+                .forEach(row -> plan.append(row.getString(0)).append('\n'));
+        assertTrue(plan.toString().contains("party_member_user_hero_idx"), plan.toString());
+        assertFalse(plan.toString().contains("Seq Scan"), plan.toString());
+    }
+}
@@ -1,28 +1,46 @@
 package org.acme.party.rest;
 
+import io.quarkus.hibernate.reactive.panache.Panache;
 import io.quarkus.test.common.http.TestHTTPEndpoint;
 import io.quarkus.test.common.http.TestHTTPResource;
 import io.quarkus.test.junit.DisabledOnIntegrationTest;
 import io.quarkus.test.junit.QuarkusMock;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
+import io.quarkus.vertx.VertxContextSupport;
 import io.restassured.RestAssured;
 import io.restassured.http.ContentType;
+import io.restassured.response.ExtractableResponse;
+import io.restassured.response.Response;
+import io.restassured.specification.RequestSpecification;
 import io.smallrye.mutiny.Uni;
 import jakarta.ws.rs.core.SecurityContext;
+import org.acme.party.entity.Game;
+import org.acme.party.entity.OutboxMessage;
 import org.acme.party.entity.PartyMember;
 import org.acme.party.hero.GraphQLHeroClient;
 import org.acme.party.hero.Hero;
+import org.acme.party.model.FightRequest;
 import org.acme.party.testprofile.profile.LocalProfile;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.net.URL;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @TestProfile(LocalProfile.class)
 @QuarkusTest
@@ -36,6 +54,26 @@ public class PartyMemberResourceTest {
     @TestHTTPResource("availability")
     URL availability;
 
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("all")
+    URL all;
+
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("fight")
+    URL fight;
+
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("stream")
+    URL stream;
+
+    @TestHTTPEndpoint(PartyMemberResource.class)
+    @TestHTTPResource("remove-user-parties")
+    URL removeUserParties;
+
+    @TestHTTPEndpoint(GameResource.class)
+    @TestHTTPResource("play")
+    URL play;
+
     @Test
     public void testPartyMemberIds() {
         PartyMember partyMember = new PartyMember();
@@ -113,4 +151,156 @@ public class PartyMemberResourceTest {
                 .body("findAll { hero -> hero.id == " + hero.id + "}", hasSize(0));
 
     }
+
+    @Test
+    public void testKeysetPagination() {
+        List<Integer> created = new ArrayList<>();
+        for (long heroId = 1; heroId <= 5; heroId++) {
+            PartyMember partyMember = new PartyMember();
+            partyMember.heroId = heroId;
+            created.add(RestAssured
+                    .given()
+                    .contentType(ContentType.JSON)
+                    .body(partyMember)
+                    .when().post(partyMemberResource)
+                    .then().statusCode(200)
+                    .extract().path("id"));
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            RequestSpecification request = RestAssured.given().queryParam("limit", 2);
+            if (cursor != null) {
+                request.queryParam("after", cursor);
+            }
+            ExtractableResponse<Response> page = request
+                    .when().get(all)
+                    .then().statusCode(200)
+                    .body("size()", lessThanOrEqualTo(2))
+                    .extract();
+            ids.addAll(page.path("id"));
+            cursor = page.header("X-Next-Cursor");
+        } while (cursor != null);
+
+        List<Integer> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        assertEquals(sorted, ids);
+        assertEquals(ids.size(), new HashSet<>(ids).size());
+        assertTrue(ids.containsAll(created));
+    }
+
+    @Test
+    public void testRemoveUserPartiesDeletesOnlyTheCallersMembers() throws Throwable {
+        String alice = "alice-" + UUID.randomUUID();
+        String bob = "bob-" + UUID.randomUUID();
+        Principal principal = Mockito.mock(Principal.class);
+        Mockito.when(principal.getName()).thenReturn(alice);
+        SecurityContext context = Mockito.mock(SecurityContext.class);
+        Mockito.when(context.getUserPrincipal()).thenReturn(principal);
+        QuarkusMock.installMockForType(context, SecurityContext.class);
+
+        List<PartyMember> members = new ArrayList<>();
+        for (String userId : List.of(alice, alice, alice, bob, bob)) {
+            PartyMember partyMember = new PartyMember();
+            partyMember.userId = userId;
+            partyMember.health = 100L;
+            partyMember.fighting = false;
+            members.add(partyMember);
+        }
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(() -> PartyMember.persist(members)));
+
+        RestAssured.given()
+                .contentType(ContentType.TEXT)
+                .body(alice)
+                .when().delete(removeUserParties)
+                .then().statusCode(200)
+                .body(is("3"));
+        assertEquals(0L, VertxContextSupport.<Long>subscribeAndAwait(() -> Panache.withSession(() -> PartyMember.count("userId", alice))));
+        assertEquals(2L, VertxContextSupport.<Long>subscribeAndAwait(() -> Panache.withSession(() -> PartyMember.count("userId", bob))));
+
+        // nothing left to remove
+        RestAssured.given()
+                .contentType(ContentType.TEXT)
+                .body(alice)
+                .when().delete(removeUserParties)
+                .then().statusCode(200)
+                .body(is("0"));
+
+        // the parties of another user cannot be removed
+        RestAssured.given()
+                .contentType(ContentType.TEXT)
+                .body(bob)
+                .when().delete(removeUserParties)
+                .then().statusCode(not(200));
+        assertEquals(2L, VertxContextSupport.<Long>subscribeAndAwait(() -> Panache.withSession(() -> PartyMember.count("userId", bob))));
+
+        VertxContextSupport.subscribeAndAwait(() -> Panache.withTransaction(() -> PartyMember.deleteByUserId(bob)));
+    }
+
+    @Test
+    public void testConcurrentFightsStartOneBattle() throws Throwable {
+        PartyMember partyMember = new PartyMember();
+        partyMember.heroId = 1L;
+        partyMember.health = 100L;
+        partyMember.fighting = false;
+        int partyMemberId = RestAssured
+                .given()
+                .contentType(ContentType.JSON)
+                .body(partyMember)
+                .when().post(partyMemberResource)
+                .then().statusCode(200)
+                .extract().path("id");
+
+        int gameId = RestAssured
+                .given()
+                .contentType(ContentType.JSON)
+                .body(new Game())
+                .when().post(play)
+                .then().statusCode(200)
+                .extract().path("id");
+
+        long outboxBefore = VertxContextSupport.subscribeAndAwait(() -> Panache.withSession(OutboxMessage::count));
+
+        int requests = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<ExtractableResponse<Response>>> responses = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                responses.add(executor.submit(() -> RestAssured
+                        .given()
+                        .contentType(ContentType.JSON)
+                        .body(new FightRequest((long) partyMemberId, (long) gameId))
+                        .when().put(fight)
+                        .then().extract()));
+            }
+
+            int started = 0;
+            String battleId = null;
+            for (Future<ExtractableResponse<Response>> response : responses) {
+                ExtractableResponse<Response> extracted = response.get(1, TimeUnit.MINUTES);
+                if (extracted.statusCode() == 200) {
+                    started++;
+                    battleId = extracted.path("battleId");
+                } else if (extracted.statusCode() == 429) {
+                    // more fights of the user at once than the per-user cap of the admission: shed, to be retried
+                    assertNotNull(extracted.header("Retry-After"));
+                } else {
+                    assertEquals(409, extracted.statusCode());
+                }
+            }
+            assertEquals(1, started);
+            // the member identifies the battle it is fighting, in the fight response and when read back
+            assertNotNull(battleId);
+            RestAssured.given()
+                    .when().get(stream)
+                    .then().statusCode(200)
+                    .body("find { it.id == " + partyMemberId + " }.battleId", equalTo(battleId));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long outboxAfter = VertxContextSupport.subscribeAndAwait(() -> Panache.withSession(OutboxMessage::count));
+        assertEquals(outboxBefore + 1, outboxAfter);
+    }
 }